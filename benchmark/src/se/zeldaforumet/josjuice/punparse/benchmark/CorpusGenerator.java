@@ -0,0 +1,788 @@
+package se.zeldaforumet.josjuice.punparse.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Writes a synthetic forum as PunBB 1.2 HTML, for load testing PunParse
+ * without using real forum data. The output is an {@code index.html} and one
+ * file for each page of each forum and topic, with the same markup as PunBB's
+ * default templates. The same arguments always give the same output.
+ * <p>
+ * Usage: {@code CorpusGenerator <folder> [options]}, where the options are:
+ * <ul>
+ * <li>{@code --seed=N}: seed for the random number generator (default 1)</li>
+ * <li>{@code --categories=N}: number of categories (default 3)</li>
+ * <li>{@code --forums=N}: forums per category (default 4)</li>
+ * <li>{@code --topics=N}: topics per forum (default 100)</li>
+ * <li>{@code --posts=N}: average posts per topic (default 20)</li>
+ * <li>{@code --users=N}: number of registered users (default 500)</li>
+ * <li>{@code --depth=N}: how deeply quotes can be nested; code boxes can
+ * appear at every level (default 3)</li>
+ * <li>{@code --no-pagelinks=F}: the share of single-page topics, between 0
+ * and 1, whose page links don't contain any links. PunParse can't find the
+ * topic ID of such a page until it has parsed the viewforum page that links
+ * to the topic's last post, so the posts are queued in
+ * {@link se.zeldaforumet.josjuice.punparse.IdMappings}. (default 0.1)</li>
+ * </ul>
+ * In PunBB, the only page of a forum or topic has no page links. Here the
+ * other single-page topics link to themselves instead, so that the share of
+ * them without page links is decided by {@code --no-pagelinks} alone. Topics
+ * with several pages always have page links, like in PunBB. Viewforum pages
+ * always have page links, since PunParse can't parse them otherwise.
+ * @author JosJuice
+ */
+public final class CorpusGenerator {
+
+    /** PunBB's default number of topics on each viewforum page. */
+    private static final int TOPICS_PER_PAGE = 30;
+    /** PunBB's default number of posts on each viewtopic page. */
+    private static final int POSTS_PER_PAGE = 25;
+    /** How many pages are stored in each subfolder. */
+    private static final int FILES_PER_FOLDER = 1000;
+    /** 2005-01-01 00:00:00 UTC. All posts are made after this. */
+    private static final long START_TIME = 1104537600000L;
+
+    private static final String[] WORDS = ("the temple water dungeon boss " +
+            "key hookshot ocarina song time master sword shield fairy " +
+            "bottle rupee heart piece hyrule castle field lake village " +
+            "kakariko gerudo desert spirit shadow forest fire deku tree " +
+            "think really game play played first when after because which " +
+            "about would could there their this that with from have been " +
+            "puzzle").split(" ");
+    private static final String[] SYLLABLES = ("ka ri na lo ze da li ga " +
+            "non mi do ro sa to ki ru").split(" ");
+    private static final String[][] SMILIES = {{":)", "smile"},
+            {":D", "big_smile"}, {";)", "wink"}, {":P", "tongue"},
+            {":(", "sad"}, {":lol:", "lol"}};
+
+    private final File folder;
+    private final Random random;
+    private final int categories;
+    private final int forums;
+    private final int topics;
+    private final int posts;
+    private final int depth;
+    private final double noPagelinks;
+    private final String[] users;
+    private final SimpleDateFormat dateFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    private int nextForumId = 1;
+    private int nextTopicId = 1;
+    private int nextPostId = 1;
+    private long files = 0;
+
+    /**
+     * Creates a {@code CorpusGenerator}.
+     * @param folder the folder to write the pages to
+     * @param seed seed for the random number generator
+     * @param categories the number of categories
+     * @param forums the number of forums in each category
+     * @param topics the number of topics in each forum
+     * @param posts the average number of posts in each topic
+     * @param users the number of registered users
+     * @param depth how deeply quotes can be nested
+     * @param noPagelinks the share of single-page topics without page links
+     */
+    public CorpusGenerator(File folder, long seed, int categories, int forums,
+                           int topics, int posts, int users, int depth,
+                           double noPagelinks) {
+        this.folder = folder;
+        this.random = new Random(seed);
+        this.categories = categories;
+        this.forums = forums;
+        this.topics = topics;
+        this.posts = posts;
+        this.depth = depth;
+        this.noPagelinks = noPagelinks;
+        this.users = new String[users];
+        for (int i = 0; i < users; i++) {
+            this.users[i] = capitalize(word(SYLLABLES, 2, 4, "")) + i;
+        }
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args[0].startsWith("--")) {
+            System.err.println("No output folder was given.");
+            return;
+        }
+        long seed = 1;
+        int categories = 3;
+        int forums = 4;
+        int topics = 100;
+        int posts = 20;
+        int users = 500;
+        int depth = 3;
+        double noPagelinks = 0.1;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(arg.substring(7));
+                }
+                if (arg.startsWith("--categories=")) {
+                    categories = Integer.parseInt(arg.substring(13));
+                }
+                if (arg.startsWith("--forums=")) {
+                    forums = Integer.parseInt(arg.substring(9));
+                }
+                if (arg.startsWith("--topics=")) {
+                    topics = Integer.parseInt(arg.substring(9));
+                }
+                if (arg.startsWith("--posts=")) {
+                    posts = Integer.parseInt(arg.substring(8));
+                }
+                if (arg.startsWith("--users=")) {
+                    users = Integer.parseInt(arg.substring(8));
+                }
+                if (arg.startsWith("--depth=")) {
+                    depth = Integer.parseInt(arg.substring(8));
+                }
+                if (arg.startsWith("--no-pagelinks=")) {
+                    noPagelinks = Double.parseDouble(arg.substring(15));
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number: " + e.getLocalizedMessage());
+            return;
+        }
+        if (posts < 1 || users < 1) {
+            System.err.println("There must be at least one post and user.");
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        CorpusGenerator generator = new CorpusGenerator(new File(args[0]),
+                seed, categories, forums, topics, posts, users, depth,
+                noPagelinks);
+        try {
+            generator.generate();
+        } catch (IOException e) {
+            System.err.println("Couldn't write pages: " +
+                               e.getLocalizedMessage());
+            return;
+        }
+        long seconds = (System.nanoTime() - startTime) / 1000000000;
+        System.out.println("Wrote " + generator.files + " pages in " +
+                           seconds + " seconds.");
+    }
+
+    /**
+     * Writes all pages.
+     * @throws IOException if a page can't be written
+     */
+    public void generate() throws IOException {
+        ArrayList<ForumSummary> index = new ArrayList<>();
+        for (int category = 0; category < categories; category++) {
+            for (int forum = 0; forum < forums; forum++) {
+                index.add(generateForum(category));
+            }
+        }
+        writeIndex(index);
+    }
+
+    /**
+     * Writes all viewtopic and viewforum pages of a forum.
+     * @param category the index of the category that contains the forum
+     * @return a summary of the forum, for the index page
+     * @throws IOException if a page can't be written
+     */
+    private ForumSummary generateForum(int category) throws IOException {
+        ForumSummary forum = new ForumSummary(nextForumId++, category,
+                                              capitalize(words(1, 3)),
+                                              capitalize(words(6, 14)) + ".");
+        ArrayList<TopicSummary> summaries = new ArrayList<>(topics);
+        for (int i = 0; i < topics; i++) {
+            TopicSummary topic = generateTopic();
+            summaries.add(topic);
+            forum.numTopics++;
+            forum.numPosts += topic.numReplies + 1;
+            if (topic.lastPosted > forum.lastPosted) {
+                forum.lastPosted = topic.lastPosted;
+                forum.lastPostId = topic.lastPostId;
+                forum.lastPoster = topic.lastPoster;
+            }
+        }
+
+        int pages = Math.max(1, (summaries.size() + TOPICS_PER_PAGE - 1) /
+                                TOPICS_PER_PAGE);
+        for (int page = 1; page <= pages; page++) {
+            try (Writer out = open("viewforum", forum.id, page)) {
+                writeHeader(out, forum.name, "punviewforum");
+                String pagelink = pagelink("viewforum", forum.id, page,
+                                           pages, true);
+                out.write("<div class=\"linkst\">\n\t<div class=\"inbox\">\n" +
+                          "\t\t" + pagelink + "\n" +
+                          "\t\t<div class=\"clearer\"></div>\n" +
+                          "\t</div>\n</div>\n\n");
+                out.write("<div id=\"vf\" class=\"blocktable\">\n" +
+                          "\t<h2><span>" + forum.name + "</span></h2>\n" +
+                          "\t<div class=\"box\">\n\t\t<div class=\"inbox\">\n" +
+                          "\t\t\t<table cellspacing=\"0\">\n\t\t\t<thead>\n" +
+                          "\t\t\t\t<tr>\n" +
+                          "\t\t\t\t\t<th class=\"tcl\" scope=\"col\">Topic" +
+                          "</th>\n" +
+                          "\t\t\t\t\t<th class=\"tc2\" scope=\"col\">Replies" +
+                          "</th>\n" +
+                          "\t\t\t\t\t<th class=\"tc3\" scope=\"col\">Views" +
+                          "</th>\n" +
+                          "\t\t\t\t\t<th class=\"tcr\" scope=\"col\">Last " +
+                          "post</th>\n" +
+                          "\t\t\t\t</tr>\n\t\t\t</thead>\n\t\t\t<tbody>\n");
+                int end = Math.min(summaries.size(), page * TOPICS_PER_PAGE);
+                for (int i = (page - 1) * TOPICS_PER_PAGE; i < end; i++) {
+                    writeTopicRow(out, summaries.get(i));
+                }
+                out.write("\t\t\t</tbody>\n\t\t\t</table>\n" +
+                          "\t\t</div>\n\t</div>\n</div>\n\n");
+                out.write("<div class=\"linksb\">\n\t<div class=\"inbox\">\n" +
+                          "\t\t" + pagelink + "\n" +
+                          "\t\t<div class=\"clearer\"></div>\n" +
+                          "\t</div>\n</div>\n");
+                writeFooter(out);
+            }
+        }
+        return forum;
+    }
+
+    /**
+     * Writes all viewtopic pages of a topic.
+     * @return a summary of the topic, for viewforum pages
+     * @throws IOException if a page can't be written
+     */
+    private TopicSummary generateTopic() throws IOException {
+        int id = nextTopicId++;
+        String subject = capitalize(words(2, 7));
+        // Between one post and twice the average, so that the average is kept
+        int numPosts = 1 + random.nextInt(2 * posts - 1);
+        long time = START_TIME + (long) (random.nextDouble() * 3e11);
+        TopicSummary topic = new TopicSummary(id, subject, numPosts - 1);
+
+        int pages = (numPosts + POSTS_PER_PAGE - 1) / POSTS_PER_PAGE;
+        for (int page = 1; page <= pages; page++) {
+            try (Writer out = open("viewtopic", id, page)) {
+                writeHeader(out, subject, "punviewtopic");
+                // Like in PunBB, only the only page of a topic can lack links
+                String pagelink = pagelink("viewtopic", id, page, pages,
+                                           pages > 1 ||
+                                           random.nextDouble() >= noPagelinks);
+                out.write("<div class=\"linkst\">\n\t<div class=\"inbox\">\n" +
+                          "\t\t" + pagelink + "\n" +
+                          "\t\t<ul><li><a href=\"index.php\">Index</a>" +
+                          "&nbsp;</li><li>&raquo;&nbsp;" + subject +
+                          "</li></ul>\n" +
+                          "\t\t<div class=\"clearer\"></div>\n" +
+                          "\t</div>\n</div>\n\n");
+                int end = Math.min(numPosts, page * POSTS_PER_PAGE);
+                for (int i = (page - 1) * POSTS_PER_PAGE; i < end; i++) {
+                    // Up to a day between posts
+                    time += random.nextInt(24 * 60 * 60) * 1000L;
+                    String poster = writePost(out, i + 1, subject, time);
+                    if (i == 0) {
+                        topic.poster = poster;
+                    }
+                    topic.lastPoster = poster;
+                    topic.lastPosted = time;
+                    topic.lastPostId = nextPostId - 1;
+                }
+                out.write("<div class=\"postlinksb\">\n" +
+                          "\t<div class=\"inbox\">\n" +
+                          "\t\t" + pagelink + "\n" +
+                          "\t\t<div class=\"clearer\"></div>\n" +
+                          "\t</div>\n</div>\n");
+                writeFooter(out);
+            }
+        }
+        return topic;
+    }
+
+    /**
+     * Writes a post.
+     * @param out the page to write to
+     * @param number the number of the post within its topic, starting at 1
+     * @param subject the subject of the topic
+     * @param time when the post was made
+     * @return the username of the poster
+     * @throws IOException if the post can't be written
+     */
+    private String writePost(Writer out, int number, String subject,
+                             long time) throws IOException {
+        int id = nextPostId++;
+        boolean isGuest = random.nextInt(20) == 0;
+        int userId = random.nextInt(users.length);
+        String username = isGuest ? capitalize(words(1, 1)) + "Guest"
+                                  : users[userId];
+
+        out.write("<div id=\"p" + id + "\" class=\"blockpost " +
+                  (number % 2 == 0 ? "roweven" : "rowodd") +
+                  (number == 1 ? " firstpost" : "") + "\">\n" +
+                  "\t<h2><span><span class=\"conr\">#" + number +
+                  "&nbsp;</span><a href=\"viewtopic.php?pid=" + id + "#p" +
+                  id + "\">" + dateFormat.format(new Date(time)) +
+                  "</a></span></h2>\n" +
+                  "\t<div class=\"box\">\n\t\t<div class=\"inbox\">\n" +
+                  "\t\t\t<div class=\"postleft\">\n\t\t\t\t<dl>\n");
+        if (isGuest) {
+            out.write("\t\t\t\t\t<dt><strong>" + username +
+                      "</strong></dt>\n" +
+                      "\t\t\t\t\t<dd class=\"usertitle\"><strong>Guest" +
+                      "</strong></dd>\n");
+        } else {
+            // User IDs start at 2, since 1 is the guest user in PunBB
+            out.write("\t\t\t\t\t<dt><strong><a href=\"profile.php?id=" +
+                      (userId + 2) + "\">" + username + "</a></strong></dt>\n" +
+                      "\t\t\t\t\t<dd class=\"usertitle\"><strong>" +
+                      (userId == 0 ? "Administrator" : "Member") +
+                      "</strong></dd>\n");
+            if (userId % 3 == 0) {
+                out.write("\t\t\t\t\t<dd class=\"postavatar\"><img src=\"" +
+                          "img/avatars/" + (userId + 2) + ".gif\" width=" +
+                          "\"60\" height=\"60\" alt=\"\" /></dd>\n");
+            }
+            out.write("\t\t\t\t\t<dd>Registered: " +
+                      String.format("2004-%02d-01", userId % 12 + 1) +
+                      "</dd>\n" +
+                      "\t\t\t\t\t<dd>Posts: " + (userId * 7 % 5000 + 1) +
+                      "</dd>\n");
+        }
+        out.write("\t\t\t\t</dl>\n\t\t\t</div>\n" +
+                  "\t\t\t<div class=\"postright\">\n" +
+                  "\t\t\t\t<h3>" + (number == 1 ? "" : "Re: ") + subject +
+                  "</h3>\n" +
+                  "\t\t\t\t<div class=\"postmsg\">\n\t\t\t\t\t");
+        writeBlocks(out, 0);
+        if (random.nextInt(10) == 0) {
+            time += random.nextInt(60 * 60) * 1000L;
+            out.write("\n\t\t\t\t\t<p class=\"postedit\"><em>Last edited by " +
+                      username + " (" + dateFormat.format(new Date(time)) +
+                      ")</em></p>");
+        }
+        out.write("\n\t\t\t\t</div>\n");
+        // Users with signatures are always shown with them
+        if (!isGuest && userId % 2 == 0) {
+            out.write("\t\t\t\t<div class=\"postsignature\"><hr />");
+            writeInline(out, users[userId].hashCode());
+            out.write("</div>\n");
+        }
+        out.write("\t\t\t</div>\n" +
+                  "\t\t\t<div class=\"clearer\"></div>\n" +
+                  "\t\t\t<div class=\"postfootleft\"><p>Offline</p></div>\n" +
+                  "\t\t\t<div class=\"postfootright\"><div>&nbsp;</div>" +
+                  "</div>\n" +
+                  "\t\t</div>\n\t</div>\n</div>\n\n");
+        return username;
+    }
+
+    /**
+     * Writes one to three paragraphs, quotes or code boxes.
+     * @param out the page to write to
+     * @param level how many quotes these blocks are inside
+     * @throws IOException if the blocks can't be written
+     */
+    private void writeBlocks(Writer out, int level) throws IOException {
+        int blocks = 1 + random.nextInt(3);
+        for (int i = 0; i < blocks; i++) {
+            int type = random.nextInt(12);
+            if (type < 3 && level < depth) {
+                out.write("<blockquote><div class=\"incqbox\"><h4>" +
+                          users[random.nextInt(users.length)] +
+                          " wrote:</h4>");
+                writeBlocks(out, level + 1);
+                out.write("</div></blockquote>");
+            } else if (type == 3) {
+                out.write("<div class=\"codebox\"><div class=\"incqbox\">" +
+                          "<h4>Code:</h4><div class=\"scrollbox\" style=\"" +
+                          "height: 4.5em\"><pre>");
+                int lines = 1 + random.nextInt(8);
+                for (int line = 0; line < lines; line++) {
+                    out.write("    x" + line + " = " + words(1, 1) + "(" +
+                              line + ") &amp;&amp; " + words(1, 1) +
+                              " &lt; 10;\n");
+                }
+                out.write("</pre></div></div></div>");
+            } else {
+                out.write("<p>");
+                writeInline(out, random.nextInt());
+                out.write("</p>");
+            }
+        }
+    }
+
+    /**
+     * Writes a few sentences with some formatting, links and smilies.
+     * @param out the page to write to
+     * @param seed A seed that decides the contents. The same seed always gives
+     * the same sentences, which is used for signatures.
+     * @throws IOException if the sentences can't be written
+     */
+    private void writeInline(Writer out, int seed) throws IOException {
+        Random inline = new Random(seed);
+        int sentences = 1 + inline.nextInt(4);
+        for (int i = 0; i < sentences; i++) {
+            if (i > 0) {
+                out.write(inline.nextBoolean() ? "<br />" : " ");
+            }
+            String sentence = capitalize(words(inline, 5, 18)) + ".";
+            switch (inline.nextInt(12)) {
+                case 0:
+                    out.write("<strong>" + sentence + "</strong>");
+                    break;
+                case 1:
+                    out.write("<em>" + sentence + "</em>");
+                    break;
+                case 2:
+                    out.write("<span class=\"bbu\">" + sentence + "</span>");
+                    break;
+                case 3:
+                    String url = "http://www.zeldaforumet.se/viewtopic.php?" +
+                                 "id=" + (1 + inline.nextInt(9999));
+                    out.write(sentence + " <a href=\"" + url + "\">" + url +
+                              "</a>");
+                    break;
+                default:
+                    out.write(sentence);
+            }
+            if (inline.nextInt(4) == 0) {
+                String[] smiley = SMILIES[inline.nextInt(SMILIES.length)];
+                out.write(" <img src=\"img/smilies/" + smiley[1] + ".png\" " +
+                          "width=\"15\" height=\"15\" alt=\"" + smiley[0] +
+                          "\" />");
+            }
+        }
+    }
+
+    /**
+     * Writes a row of a viewforum page.
+     * @param out the page to write to
+     * @param topic the topic to write
+     * @throws IOException if the row can't be written
+     */
+    private void writeTopicRow(Writer out, TopicSummary topic)
+            throws IOException {
+        out.write("\t\t\t\t<tr>\n" +
+                  "\t\t\t\t\t<td class=\"tcl\">\n" +
+                  "\t\t\t\t\t\t<div class=\"intd\">\n" +
+                  "\t\t\t\t\t\t\t<div class=\"icon\"><div class=\"nosize\">" +
+                  "<!-- --></div></div>\n" +
+                  "\t\t\t\t\t\t\t<div class=\"tclcon\">\n" +
+                  "\t\t\t\t\t\t\t\t<a href=\"viewtopic.php?id=" + topic.id +
+                  "\">" + topic.subject + "</a> <span class=\"byuser\">" +
+                  "by&nbsp;" + topic.poster + "</span>\n" +
+                  "\t\t\t\t\t\t\t</div>\n\t\t\t\t\t\t</div>\n" +
+                  "\t\t\t\t\t</td>\n" +
+                  "\t\t\t\t\t<td class=\"tc2\">" + topic.numReplies +
+                  "</td>\n" +
+                  "\t\t\t\t\t<td class=\"tc3\">" +
+                  (topic.numReplies * 13 + topic.id % 100) + "</td>\n" +
+                  "\t\t\t\t\t<td class=\"tcr\"><a href=\"viewtopic.php?pid=" +
+                  topic.lastPostId + "#p" + topic.lastPostId + "\">" +
+                  dateFormat.format(new Date(topic.lastPosted)) +
+                  "</a> <span class=\"byuser\">by&nbsp;" + topic.lastPoster +
+                  "</span></td>\n" +
+                  "\t\t\t\t</tr>\n");
+    }
+
+    /**
+     * Writes {@code index.html}.
+     * @param forums all forums, in the order they are displayed
+     * @throws IOException if the page can't be written
+     */
+    private void writeIndex(ArrayList<ForumSummary> forums)
+            throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(folder, "index.html")),
+                StandardCharsets.ISO_8859_1))) {
+            files++;
+            writeHeader(out, "Index", "punindex");
+            for (int category = 0; category < categories; category++) {
+                out.write("<div id=\"idx" + (category + 1) + "\" class=\"" +
+                          "blocktable\">\n" +
+                          "\t<h2><span>" + capitalize(words(1, 3)) +
+                          "</span></h2>\n" +
+                          "\t<div class=\"box\">\n\t\t<div class=\"inbox\">\n" +
+                          "\t\t\t<table cellspacing=\"0\">\n\t\t\t<thead>\n" +
+                          "\t\t\t\t<tr>\n" +
+                          "\t\t\t\t\t<th class=\"tcl\" scope=\"col\">Forum" +
+                          "</th>\n" +
+                          "\t\t\t\t\t<th class=\"tc2\" scope=\"col\">Topics" +
+                          "</th>\n" +
+                          "\t\t\t\t\t<th class=\"tc3\" scope=\"col\">Posts" +
+                          "</th>\n" +
+                          "\t\t\t\t\t<th class=\"tcr\" scope=\"col\">Last " +
+                          "post</th>\n" +
+                          "\t\t\t\t</tr>\n\t\t\t</thead>\n\t\t\t<tbody>\n");
+                for (ForumSummary forum : forums) {
+                    if (forum.category == category) {
+                        writeForumRow(out, forum);
+                    }
+                }
+                out.write("\t\t\t</tbody>\n\t\t\t</table>\n" +
+                          "\t\t</div>\n\t</div>\n</div>\n\n");
+            }
+            writeFooter(out);
+        }
+    }
+
+    /**
+     * Writes a row of the index page.
+     * @param out the page to write to
+     * @param forum the forum to write
+     * @throws IOException if the row can't be written
+     */
+    private void writeForumRow(Writer out, ForumSummary forum)
+            throws IOException {
+        out.write("\t\t\t\t<tr>\n" +
+                  "\t\t\t\t\t<td class=\"tcl\">\n" +
+                  "\t\t\t\t\t\t<div class=\"intd\">\n" +
+                  "\t\t\t\t\t\t\t<div class=\"icon\"><div class=\"nosize\">" +
+                  "<!-- --></div></div>\n" +
+                  "\t\t\t\t\t\t\t<div class=\"tclcon\">\n" +
+                  "\t\t\t\t\t\t\t\t<h3><a href=\"viewforum.php?id=" +
+                  forum.id + "\">" + forum.name + "</a></h3>\n" +
+                  "\t\t\t\t\t\t\t\t" + forum.description + "\n" +
+                  "\t\t\t\t\t\t\t</div>\n\t\t\t\t\t\t</div>\n" +
+                  "\t\t\t\t\t</td>\n" +
+                  "\t\t\t\t\t<td class=\"tc2\">" + forum.numTopics + "</td>\n" +
+                  "\t\t\t\t\t<td class=\"tc3\">" + forum.numPosts + "</td>\n");
+        if (forum.numTopics == 0) {
+            out.write("\t\t\t\t\t<td class=\"tcr\">Never</td>\n");
+        } else {
+            out.write("\t\t\t\t\t<td class=\"tcr\"><a href=\"viewtopic.php?" +
+                      "pid=" + forum.lastPostId + "#p" + forum.lastPostId +
+                      "\">" + dateFormat.format(new Date(forum.lastPosted)) +
+                      "</a> <span class=\"byuser\">by " + forum.lastPoster +
+                      "</span></td>\n");
+        }
+        out.write("\t\t\t\t</tr>\n");
+    }
+
+    /**
+     * Writes everything before the contents of a page.
+     * @param out the page to write to
+     * @param title the title of the page
+     * @param punId the ID of the {@code .pun} element
+     * @throws IOException if the header can't be written
+     */
+    private static void writeHeader(Writer out, String title, String punId)
+            throws IOException {
+        out.write("<!DOCTYPE html PUBLIC " +
+                  "\"-//W3C//DTD XHTML 1.0 Strict//EN\" " +
+                  "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n" +
+                  "<html xmlns=\"http://www.w3.org/1999/xhtml\" " +
+                  "dir=\"ltr\">\n" +
+                  "<head>\n" +
+                  "<meta http-equiv=\"Content-Type\" content=\"text/html; " +
+                  "charset=iso-8859-1\" />\n" +
+                  "<title>" + title + " / Zeldaforumet</title>\n" +
+                  "<link rel=\"stylesheet\" type=\"text/css\" " +
+                  "href=\"style/Oxygen.css\" />\n" +
+                  "</head>\n<body>\n\n" +
+                  "<div id=\"punwrap\">\n" +
+                  "<div id=\"" + punId + "\" class=\"pun\">\n\n" +
+                  "<div id=\"brdheader\" class=\"block\">\n" +
+                  "\t<div class=\"box\">\n" +
+                  "\t\t<div id=\"brdtitle\" class=\"inbox\">\n" +
+                  "\t\t\t<h1><span>Zeldaforumet</span></h1>\n" +
+                  "\t\t</div>\n" +
+                  "\t\t<div id=\"brdmenu\" class=\"inbox\">\n" +
+                  "\t\t\t<ul>\n" +
+                  "\t\t\t\t<li id=\"navindex\"><a href=\"index.php\">Index" +
+                  "</a></li>\n" +
+                  "\t\t\t\t<li id=\"navuserlist\"><a href=\"userlist.php\">" +
+                  "User list</a></li>\n" +
+                  "\t\t\t\t<li id=\"navsearch\"><a href=\"search.php\">" +
+                  "Search</a></li>\n" +
+                  "\t\t\t</ul>\n" +
+                  "\t\t</div>\n" +
+                  "\t</div>\n" +
+                  "</div>\n\n");
+    }
+
+    /**
+     * Writes everything after the contents of a page.
+     * @param out the page to write to
+     * @throws IOException if the footer can't be written
+     */
+    private static void writeFooter(Writer out) throws IOException {
+        out.write("\n<div id=\"brdfooter\" class=\"block\">\n" +
+                  "\t<h2><span>Board footer</span></h2>\n" +
+                  "\t<div class=\"box\">\n\t\t<div class=\"inbox\">\n" +
+                  "\t\t\t<p class=\"conr\">Powered by <a href=\"" +
+                  "http://www.punbb.org/\">PunBB</a></p>\n" +
+                  "\t\t\t<div class=\"clearer\"></div>\n" +
+                  "\t\t</div>\n\t</div>\n</div>\n\n" +
+                  "</div>\n</div>\n\n</body>\n</html>\n");
+    }
+
+    /**
+     * Builds the page links of a viewforum or viewtopic page.
+     * @param type {@code viewforum} or {@code viewtopic}
+     * @param id the ID of the forum or topic
+     * @param page the current page, starting at 1
+     * @param pages the number of pages
+     * @param withLinks If {@code false}, only the current page is shown, like
+     * on a page that is the only page of its topic.
+     * @return the {@code .pagelink} element
+     */
+    private static String pagelink(String type, int id, int page, int pages,
+                                   boolean withLinks) {
+        StringBuilder sb = new StringBuilder("<p class=\"pagelink conl\">" +
+                                             "Pages:");
+        if (!withLinks) {
+            return sb.append(" <strong>").append(page).append("</strong></p>").
+                   toString();
+        }
+        for (int i = 1; i <= pages; i++) {
+            if (i == page) {
+                sb.append(" <strong>").append(i).append("</strong>");
+            } else {
+                sb.append(" <a href=\"").append(type).append(".php?id=").
+                   append(id).append("&amp;p=").append(i).append("\">").
+                   append(i).append("</a>");
+            }
+        }
+        // A single page has no other page to link to, so link to itself
+        if (pages == 1) {
+            sb.append(" <a href=\"").append(type).append(".php?id=").
+               append(id).append("\">").append("1</a>");
+        }
+        return sb.append("</p>").toString();
+    }
+
+    /**
+     * Opens a viewforum or viewtopic page for writing. Pages are spread out
+     * over subfolders, since file systems get slow with millions of files in
+     * one folder.
+     * @param type {@code viewforum} or {@code viewtopic}
+     * @param id the ID of the forum or topic
+     * @param page the number of the page, starting at 1
+     * @return a writer for the page
+     * @throws IOException if the page can't be opened
+     */
+    private Writer open(String type, int id, int page) throws IOException {
+        File subfolder = new File(folder, type + File.separator +
+                                          files / FILES_PER_FOLDER);
+        if (!subfolder.isDirectory() && !subfolder.mkdirs()) {
+            throw new IOException("Couldn't create " + subfolder);
+        }
+        files++;
+        File file = new File(subfolder, type + "-" + id + "-" + page + ".html");
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * @param min the minimum number of words
+     * @param max the maximum number of words
+     * @return random words separated by spaces
+     */
+    private String words(int min, int max) {
+        return words(random, min, max);
+    }
+
+    /**
+     * @param random the random number generator to use
+     * @param min the minimum number of words
+     * @param max the maximum number of words
+     * @return random words separated by spaces
+     */
+    private static String words(Random random, int min, int max) {
+        int count = min + random.nextInt(max - min + 1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param parts the strings to pick from
+     * @param min the minimum number of strings
+     * @param max the maximum number of strings
+     * @param separator the string to put between the picked strings
+     * @return random strings from {@code parts}
+     */
+    private String word(String[] parts, int min, int max, String separator) {
+        int count = min + random.nextInt(max - min + 1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(separator);
+            }
+            sb.append(parts[random.nextInt(parts.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param string a string that isn't empty
+     * @return the string with its first letter in upper case
+     */
+    private static String capitalize(String string) {
+        return Character.toUpperCase(string.charAt(0)) + string.substring(1);
+    }
+
+    /**
+     * What viewforum pages show about a topic.
+     */
+    private static final class TopicSummary {
+
+        private final int id;
+        private final String subject;
+        private final int numReplies;
+        private String poster;
+        private String lastPoster;
+        private long lastPosted;
+        private int lastPostId;
+
+        private TopicSummary(int id, String subject, int numReplies) {
+            this.id = id;
+            this.subject = subject;
+            this.numReplies = numReplies;
+        }
+
+    }
+
+    /**
+     * What the index page shows about a forum.
+     */
+    private static final class ForumSummary {
+
+        private final int id;
+        private final int category;
+        private final String name;
+        private final String description;
+        private int numTopics;
+        private int numPosts;
+        private long lastPosted;
+        private int lastPostId;
+        private String lastPoster;
+
+        private ForumSummary(int id, int category, String name,
+                             String description) {
+            this.id = id;
+            this.category = category;
+            this.name = name;
+            this.description = description;
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+package se.zeldaforumet.josjuice.punparse.benchmark;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import se.zeldaforumet.josjuice.punparse.DateParser;
+
+/**
+ * Benchmarks {@link DateParser#parse(String)} with several threads sharing
+ * one {@link DateParser}, like the worker threads of a run do. {@code repeated}
+ * parses a small set of dates that stays cached, like the dates of a busy
+ * forum. {@code distinct} parses more dates than the cache holds, so most of
+ * them have to be parsed by a {@link SimpleDateFormat}.
+ * @author JosJuice
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class DateParserBenchmark {
+
+    private static final int REPEATED_DATES = 256;
+    private static final int DISTINCT_DATES = 256 * 1024;
+
+    private DateParser dateParser;
+    private String[] dates;
+
+    @Setup public void setup() {
+        TimeZone timeZone = TimeZone.getTimeZone("Europe/Stockholm");
+        dateParser = new DateParser(Fixtures.DATE_FORMAT, timeZone);
+        SimpleDateFormat format = new SimpleDateFormat(Fixtures.DATE_FORMAT);
+        format.setTimeZone(timeZone);
+        // One date every 37 seconds starting at 2008-01-01, all different
+        dates = new String[DISTINCT_DATES];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = format.format(new Date(1199142000000L + i * 37000L));
+        }
+    }
+
+    @Benchmark public long repeated() throws ParseException {
+        int i = ThreadLocalRandom.current().nextInt(REPEATED_DATES);
+        return dateParser.parse(dates[i]);
+    }
+
+    @Benchmark public long distinct() throws ParseException {
+        int i = ThreadLocalRandom.current().nextInt(DISTINCT_DATES);
+        return dateParser.parse(dates[i]);
+    }
+
+}
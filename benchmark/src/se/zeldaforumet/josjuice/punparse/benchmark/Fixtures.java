@@ -0,0 +1,83 @@
+package se.zeldaforumet.josjuice.punparse.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+/**
+ * Loads the PunBB pages that the benchmarks run on. The pages are read from
+ * the directory given by the {@code punparse.fixtures} system property, or
+ * from {@code benchmark/fixtures} if it isn't set.
+ * @author JosJuice
+ */
+final class Fixtures {
+
+    /** The date format used in the fixture pages. */
+    static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    private static final String DIRECTORY =
+            System.getProperty("punparse.fixtures", "benchmark/fixtures");
+
+    private Fixtures() {}
+
+    /**
+     * Loads and parses a fixture page.
+     * @param name the file name of the page, for instance
+     * {@code viewtopic.html}
+     * @return the {@code .pun} element of the page
+     * @throws IOException if the page can't be read
+     */
+    static Element load(String name) throws IOException {
+        File file = new File(DIRECTORY, name);
+        Document document = Jsoup.parse(file, "ISO-8859-1",
+                                        "http://www.zeldaforumet.se/");
+        Element pun = document.getElementsByClass("pun").first();
+        if (pun == null) {
+            throw new IOException(file + " is not a PunBB page.");
+        }
+        return pun;
+    }
+
+    /**
+     * @return the posts ({@code .blockpost} elements) of the viewtopic page
+     * @throws IOException if the page can't be read
+     */
+    static Element[] posts() throws IOException {
+        return load("viewtopic.html").getElementsByClass("blockpost").
+               toArray(new Element[0]);
+    }
+
+    /**
+     * @return the topic rows of the viewforum page
+     * @throws IOException if the page can't be read
+     */
+    static Element[] topics() throws IOException {
+        return rows(load("viewforum.html"));
+    }
+
+    /**
+     * @return the forum rows of the index page
+     * @throws IOException if the page can't be read
+     */
+    static Element[] forums() throws IOException {
+        return rows(load("index.html"));
+    }
+
+    /**
+     * @param element a viewforum or index page
+     * @return the table rows that aren't headings
+     */
+    private static Element[] rows(Element element) {
+        ArrayList<Element> rows = new ArrayList<>();
+        for (Element row : element.getElementsByTag("tr")) {
+            if (!row.getElementsByClass("tclcon").isEmpty()) {
+                rows.add(row);
+            }
+        }
+        return rows.toArray(new Element[rows.size()]);
+    }
+
+}
@@ -0,0 +1,75 @@
+package se.zeldaforumet.josjuice.punparse.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import se.zeldaforumet.josjuice.punparse.CountingSink;
+import se.zeldaforumet.josjuice.punparse.DateParser;
+import se.zeldaforumet.josjuice.punparse.IdMappings;
+import se.zeldaforumet.josjuice.punparse.Post;
+import se.zeldaforumet.josjuice.punparse.Topic;
+
+/**
+ * Benchmarks contention on {@link IdMappings}, with threads that look up the
+ * topic IDs of viewtopic pages while another thread adds mappings from
+ * viewforum pages. The looked up pages always have a mapping, so nothing is
+ * queued and the memory use stays the same during the benchmark.
+ * @author JosJuice
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IdMappingsBenchmark {
+
+    private IdMappings idMappings;
+    private CountingSink sink;
+    private List<Post> posts;
+    private Topic[] topics;
+    private int nextTopic;
+
+    @Setup public void setup() throws IOException {
+        DateParser dateParser = new DateParser(Fixtures.DATE_FORMAT);
+        ArrayList<String> errors = new ArrayList<>();
+        posts = new ArrayList<>();
+        for (Element element : Fixtures.posts()) {
+            posts.add(Post.parse(element, dateParser, null, errors));
+        }
+        ArrayList<Topic> topicList = new ArrayList<>();
+        for (Element element : Fixtures.topics()) {
+            Topic topic = Topic.parse(element, dateParser, 4, errors);
+            if (!topic.isMoved()) {
+                topicList.add(topic);
+            }
+        }
+        topics = topicList.toArray(new Topic[topicList.size()]);
+
+        idMappings = new IdMappings();
+        sink = new CountingSink();
+        // Map the first post so that the whole page has to be looked through
+        idMappings.putMapping(posts.get(0).getId(), 1337);
+    }
+
+    @Benchmark @Group("contention") @GroupThreads(3)
+    public Integer getTopicId() {
+        return idMappings.getTopicId(posts, "viewtopic.html");
+    }
+
+    @Benchmark @Group("contention") @GroupThreads(1)
+    public void setTopicId() {
+        // Only one thread runs this method, so nextTopic needs no locking
+        idMappings.setTopicId(topics[nextTopic], sink, null);
+        nextTopic = (nextTopic + 1) % topics.length;
+    }
+
+}
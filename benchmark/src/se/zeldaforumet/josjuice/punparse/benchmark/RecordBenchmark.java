@@ -0,0 +1,63 @@
+package se.zeldaforumet.josjuice.punparse.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import se.zeldaforumet.josjuice.punparse.DateParser;
+import se.zeldaforumet.josjuice.punparse.Forum;
+import se.zeldaforumet.josjuice.punparse.Post;
+import se.zeldaforumet.josjuice.punparse.Topic;
+
+/**
+ * Benchmarks the factory methods of {@link Post}, {@link Topic} and
+ * {@link Forum}, which extract the records from already parsed HTML. Each
+ * operation creates all records of a fixture page.
+ * @author JosJuice
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecordBenchmark {
+
+    private DateParser dateParser;
+    private Element[] posts;
+    private Element[] topics;
+    private Element[] forums;
+    private final ArrayList<String> errors = new ArrayList<>();
+
+    @Setup public void setup() throws IOException {
+        dateParser = new DateParser(Fixtures.DATE_FORMAT);
+        posts = Fixtures.posts();
+        topics = Fixtures.topics();
+        forums = Fixtures.forums();
+    }
+
+    @Benchmark public void post(Blackhole blackhole) {
+        for (Element post : posts) {
+            blackhole.consume(Post.parse(post, dateParser, null, errors));
+        }
+    }
+
+    @Benchmark public void topic(Blackhole blackhole) {
+        for (Element topic : topics) {
+            blackhole.consume(Topic.parse(topic, dateParser, 4, errors));
+        }
+    }
+
+    @Benchmark public void forum(Blackhole blackhole) {
+        for (int i = 0; i < forums.length; i++) {
+            blackhole.consume(Forum.parse(forums[i], dateParser, i, 1,
+                                          errors));
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package se.zeldaforumet.josjuice.punparse.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import se.zeldaforumet.josjuice.punparse.TextParser;
+
+/**
+ * Benchmarks the conversion of post messages to BBCode and the reading of
+ * query values from links. Each operation handles all messages or links of
+ * the viewtopic fixture page.
+ * @author JosJuice
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TextParserBenchmark {
+
+    private Element[] messages;
+    private String[] urls;
+
+    @Setup public void setup() throws IOException {
+        Element page = Fixtures.load("viewtopic.html");
+        messages = page.getElementsByClass("postmsg").toArray(new Element[0]);
+        ArrayList<String> hrefs = new ArrayList<>();
+        for (Element link : page.getElementsByTag("a")) {
+            hrefs.add(link.attr("href"));
+        }
+        urls = hrefs.toArray(new String[hrefs.size()]);
+    }
+
+    @Benchmark public void parseMessage(Blackhole blackhole) {
+        for (Element message : messages) {
+            blackhole.consume(TextParser.parseMessage(message));
+        }
+    }
+
+    @Benchmark public void getQueryValue(Blackhole blackhole) {
+        for (String url : urls) {
+            blackhole.consume(TextParser.getQueryValue(url, "id"));
+            blackhole.consume(TextParser.getQueryValue(url, "pid"));
+        }
+    }
+
+}
@@ -0,0 +1,370 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads files out of zip, tar and tar.gz archives and submits them to a
+ * {@link ParseScheduler} without extracting them to disk. Single files that
+ * have been compressed with gzip (for instance {@code .html.gz}) are also
+ * supported. Thread safe.
+ * @author JosJuice
+ */
+public final class ArchiveReader {
+
+    private static final int TAR_BLOCK_SIZE = 512;
+    /** Entries larger than this are skipped to keep memory use bounded. */
+    private static final int MAX_ENTRY_SIZE = 64 * 1024 * 1024;
+
+    private final ParseScheduler scheduler;
+    private final UserInterface ui;
+
+    /**
+     * Creates an {@code ArchiveReader}.
+     * @param scheduler A {@link ParseScheduler} to submit archive entries to.
+     * @param ui A {@link UserInterface} for error display, or {@code null}.
+     */
+    public ArchiveReader(ParseScheduler scheduler, UserInterface ui) {
+        this.scheduler = scheduler;
+        this.ui = ui;
+    }
+
+    /**
+     * @param file a file that may be an archive
+     * @return {@code true} if the file name ends with an archive extension
+     * supported by {@link #read(File) read} (compressed WARC files excluded)
+     */
+    public static boolean isArchive(File file) {
+        String name = file.getName().toLowerCase();
+        if (WarcReader.isWarc(file)) {
+            return false;
+        }
+        return name.endsWith(".zip") || name.endsWith(".tar") ||
+               name.endsWith(".tgz") || name.endsWith(".gz");
+    }
+
+    /**
+     * Submits all files in an archive for parsing. Each entry is read into
+     * memory and submitted as soon as it has been found, unless the
+     * {@link ParseScheduler} can tell from its name that it won't be accepted
+     * in the current pass. Entries larger than 64 MB are skipped. The name of
+     * an entry is the path of the archive, as given by
+     * {@link ParseTask#getJournalName(File)}, followed by a colon and the path
+     * of the entry, so that entries of different archives can't get the same
+     * name in the {@link Journal}. For a single compressed file, the path of
+     * the entry is the name of the file minus {@code .gz}.
+     * @param archive a zip, tar, tar.gz or gz file
+     */
+    public void read(File archive) {
+        String name = archive.getName();
+        String lowerCaseName = name.toLowerCase();
+        String archiveName = ParseTask.getJournalName(archive);
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(archive))) {
+            if (lowerCaseName.endsWith(".zip")) {
+                readZip(archiveName, in);
+            } else if (lowerCaseName.endsWith(".tar")) {
+                readTar(archiveName, in);
+            } else if (lowerCaseName.endsWith(".tar.gz") ||
+                       lowerCaseName.endsWith(".tgz")) {
+                readTar(archiveName, new GZIPInputStream(in));
+            } else if (lowerCaseName.endsWith(".gz")) {
+                String entryName = archiveName + ":" +
+                                   name.substring(0, name.length() - 3);
+                if (!scheduler.isSkipped(entryName)) {
+                    submit(entryName, readFully(new GZIPInputStream(in), -1));
+                }
+            } else {
+                throw new IOException("Unknown archive type");
+            }
+        } catch (IOException e) {
+            if (ui != null) {
+                ui.printError("Couldn't read archive " + name + ": " +
+                              e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Submits all files in a zip archive.
+     * @param archiveName name of the archive, used for naming entries
+     * @param in the archive
+     * @throws IOException if the archive can't be read
+     */
+    private void readZip(String archiveName, InputStream in)
+            throws IOException {
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            String entryName = archiveName + ":" + entry.getName();
+            // The rest of an entry that isn't read is skipped by getNextEntry
+            if (!entry.isDirectory() && !scheduler.isSkipped(entryName) &&
+                !isTooLarge(entryName, entry.getSize())) {
+                submit(entryName, readFully(zip, entry.getSize()));
+            }
+        }
+    }
+
+    /**
+     * Submits all files in a tar archive. The ustar, GNU and pax variants of
+     * the format are supported, but only regular files are submitted.
+     * @param archiveName name of the archive, used for naming entries
+     * @param in the archive
+     * @throws IOException if the archive can't be read
+     */
+    private void readTar(String archiveName, InputStream in)
+            throws IOException {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        String longName = null;
+        while (readBlock(in, header) && header[0] != 0) {
+            String entryName = getTarString(header, 0, 100);
+            long size = getTarNumber(header, 124, 12);
+            byte type = header[156];
+            String prefix = getTarString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                entryName = prefix + "/" + entryName;
+            }
+            if (longName != null) {
+                entryName = longName;
+                longName = null;
+            }
+
+            switch (type) {
+                case '0':
+                case 0:
+                    entryName = archiveName + ":" + entryName;
+                    if (scheduler.isSkipped(entryName) ||
+                        isTooLarge(entryName, size)) {
+                        skipFully(in, size + padding(size));
+                        break;
+                    }
+                    scheduler.submit(entryName, readFully(in, size));
+                    skipFully(in, padding(size));
+                    break;
+                case 'L':       // GNU long name of the following entry
+                    byte[] nameBytes = readFully(in, size);
+                    skipFully(in, padding(size));
+                    longName = getTarString(nameBytes, 0, nameBytes.length);
+                    break;
+                case 'x':       // pax extended header of the following entry
+                    byte[] paxBytes = readFully(in, size);
+                    skipFully(in, padding(size));
+                    String path = getPaxPath(paxBytes);
+                    if (path != null) {
+                        longName = path;
+                    }
+                    break;
+                default:        // Directories, links, global headers...
+                    skipFully(in, size + padding(size));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Submits an entry that has been read, or displays an error if it was too
+     * large to be read.
+     * @param name the name of the entry
+     * @param content the contents of the entry, or {@code null} if it was too
+     * large
+     */
+    private void submit(String name, byte[] content) {
+        if (content != null) {
+            scheduler.submit(name, content);
+        } else {
+            printTooLarge(name);
+        }
+    }
+
+    /**
+     * Checks whether an entry of a known size is too large to be read, and
+     * displays an error if it is.
+     * @param name the name of the entry
+     * @param size the size of the entry, or -1 if it isn't known
+     * @return {@code true} if the entry is larger than
+     * {@link #MAX_ENTRY_SIZE}
+     */
+    private boolean isTooLarge(String name, long size) {
+        if (size <= MAX_ENTRY_SIZE) {
+            return false;
+        }
+        printTooLarge(name);
+        return true;
+    }
+
+    /**
+     * @param name the name of an entry that is too large to be read
+     */
+    private void printTooLarge(String name) {
+        if (ui != null && scheduler.isLastPass()) {
+            ui.printError("Skipped " + name + " because it is too large.");
+        }
+    }
+
+    /**
+     * Reads the rest of an entry into memory.
+     * @param in stream positioned at the start of the entry
+     * @param size the size of the entry, or -1 to read until end of stream
+     * @return the contents of the entry, or {@code null} if the size wasn't
+     * known and the entry turned out to be larger than
+     * {@link #MAX_ENTRY_SIZE}, in which case reading stops there
+     * @throws IOException if the entry can't be read or its size is larger
+     * than {@link #MAX_ENTRY_SIZE}
+     */
+    private static byte[] readFully(InputStream in, long size)
+            throws IOException {
+        if (size > MAX_ENTRY_SIZE) {
+            throw new IOException("Entry is too large: " + size + " bytes");
+        }
+        if (size < 0) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                // Check first, so that the buffer never grows past the limit
+                if (out.size() + read > MAX_ENTRY_SIZE) {
+                    return null;
+                }
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+        byte[] result = new byte[(int) size];
+        int offset = 0;
+        while (offset < result.length) {
+            int read = in.read(result, offset, result.length - offset);
+            if (read == -1) {
+                throw new EOFException("Archive ended in the middle of an " +
+                                       "entry");
+            }
+            offset += read;
+        }
+        return result;
+    }
+
+    /**
+     * Reads one tar block.
+     * @param in the archive
+     * @param block array to place the block in
+     * @return {@code false} if the archive ended before the block
+     * @throws IOException if the archive can't be read
+     */
+    private static boolean readBlock(InputStream in, byte[] block)
+            throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int read = in.read(block, offset, block.length - offset);
+            if (read == -1) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    /**
+     * Skips a number of bytes, failing if the stream ends before that.
+     * @param in the stream to skip bytes in
+     * @param amount the number of bytes to skip
+     * @throws IOException if the stream can't be read
+     */
+    private static void skipFully(InputStream in, long amount)
+            throws IOException {
+        while (amount > 0) {
+            long skipped = in.skip(amount);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Archive ended in the middle of " +
+                                           "an entry");
+                }
+                skipped = 1;
+            }
+            amount -= skipped;
+        }
+    }
+
+    /**
+     * @param size the size of a tar entry
+     * @return the number of bytes between the end of the entry and the next
+     * block
+     */
+    private static long padding(long size) {
+        return (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+    }
+
+    /**
+     * Reads a NUL-terminated string from a tar header.
+     * @param header the header
+     * @param offset start of the field
+     * @param length maximum length of the field
+     * @return the string
+     */
+    private static String getTarString(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a number from a tar header. Numbers are usually written in octal,
+     * but large numbers may be written in base 256 (marked by the high bit).
+     * @param header the header
+     * @param offset start of the field
+     * @param length length of the field
+     * @return the number
+     * @throws IOException if the field doesn't contain a valid number
+     */
+    private static long getTarNumber(byte[] header, int offset, int length)
+            throws IOException {
+        long result = 0;
+        if ((header[offset] & 0x80) != 0) {
+            result = header[offset] & 0x7F;
+            for (int i = offset + 1; i < offset + length; i++) {
+                result = (result << 8) | (header[i] & 0xFF);
+            }
+            return result;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (result != 0) {
+                    break;      // Trailing NUL or space ends the number
+                }
+            } else if (b >= '0' && b <= '7') {
+                result = (result << 3) + (b - '0');
+            } else {
+                throw new IOException("Invalid tar header");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the path in a pax extended header. Each record in the header
+     * looks like {@code "<length> <key>=<value>\n"}.
+     * @param pax the contents of the header
+     * @return the path, or {@code null} if the header doesn't contain one
+     */
+    private static String getPaxPath(byte[] pax) {
+        String records = new String(pax, StandardCharsets.UTF_8);
+        for (String record : records.split("\n")) {
+            int keyStart = record.indexOf(' ') + 1;
+            if (record.startsWith("path=", keyStart)) {
+                return record.substring(keyStart + 5);
+            }
+        }
+        return null;
+    }
+
+}
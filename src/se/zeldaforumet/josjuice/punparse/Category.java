@@ -1,5 +1,6 @@
 package se.zeldaforumet.josjuice.punparse;
 
+import java.util.Collection;
 import org.jsoup.nodes.Element;
 
 /**
@@ -14,19 +15,26 @@ public final class Category {
     private final int displayPosition;
     
     /**
-     * Constructs a {@code Category}.
+     * Parses a category. If required parts of HTML are missing, an error is
+     * added to {@code errors} instead of throwing an exception.
      * @param element HTML element representing a category.
      * The element should always have the {@code .blocktable} class.
      * @param displayPosition categories will be sorted by this when displayed
-     * @throws IllegalArgumentException if required parts of HTML are missing
+     * @param errors A list to add an error to if the category can't be parsed.
+     * @return the category, or {@code null} if it can't be parsed
      */
-    public Category(Element element, int displayPosition)
-            throws IllegalArgumentException {
-        try {
-            name = element.getElementsByTag("h2").first().text();
-        } catch (NullPointerException e) {
-            throw new IllegalArgumentException("Couldn't get category name.",e);
+    public static Category parse(Element element, int displayPosition,
+                                 Collection<String> errors) {
+        Element h2 = element == null ? null
+                                     : element.getElementsByTag("h2").first();
+        if (h2 == null) {
+            return InputErrors.add(errors, "Couldn't get category name.");
         }
+        return new Category(h2.text(), displayPosition);
+    }
+    
+    private Category(String name, int displayPosition) {
+        this.name = name;
         
         // TODO use a more accurate value when database already has categories
         this.displayPosition = displayPosition;
@@ -0,0 +1,87 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link RecordSink} that throws away all records and only counts them, for
+ * measuring how fast parsing is without a database. Thread safe.
+ * @author JosJuice
+ */
+public final class CountingSink implements RecordSink {
+    
+    private final AtomicLong users = new AtomicLong();
+    private final AtomicLong posts = new AtomicLong();
+    private final AtomicLong topics = new AtomicLong();
+    private final AtomicLong forums = new AtomicLong();
+    private final AtomicLong categories = new AtomicLong();
+    private final AtomicLong characters = new AtomicLong();
+    
+    @Override public void createTables() {}
+    
+    @Override public void insert(PostUser postUser,
+                                 InsertCallback callback) {
+        users.incrementAndGet();
+        characters.addAndGet(length(postUser.getUsername()) +
+                             length(postUser.getTitle()) +
+                             length(postUser.getSignature()));
+        callback.inserted();
+    }
+    
+    @Override public void insert(Post post, int topicId,
+                                 InsertCallback callback) {
+        posts.incrementAndGet();
+        characters.addAndGet(length(post.getMessage()) +
+                             length(post.getEditedBy()));
+        callback.inserted();
+    }
+    
+    @Override public void insert(Topic topic, InsertCallback callback) {
+        topics.incrementAndGet();
+        characters.addAndGet(length(topic.getPoster()) +
+                             length(topic.getSubject()) +
+                             length(topic.getLastPoster()));
+        callback.inserted();
+    }
+    
+    @Override public void insert(Forum forum, InsertCallback callback) {
+        forums.incrementAndGet();
+        characters.addAndGet(length(forum.getName()) +
+                             length(forum.getDescription()) +
+                             length(forum.getRedirectUrl()) +
+                             length(forum.getLastPoster()));
+        callback.inserted();
+    }
+    
+    @Override public void insert(Category category,
+                                 InsertCallback callback) {
+        categories.incrementAndGet();
+        characters.addAndGet(length(category.getName()));
+        callback.inserted();
+    }
+    
+    @Override public void flush() {}
+    
+    @Override public void close() {}
+    
+    /**
+     * @return the number of posts that have been inserted
+     */
+    public long getPosts() {
+        return posts.get();
+    }
+    
+    /**
+     * @return a description of everything that has been inserted
+     */
+    @Override public String toString() {
+        return "Counted " + posts.get() + " posts, " + topics.get() +
+               " topics, " + forums.get() + " forums, " + categories.get() +
+               " categories and " + users.get() + " users, with " +
+               characters.get() + " characters of text.";
+    }
+    
+    private static int length(String string) {
+        return string == null ? 0 : string.length();
+    }
+    
+}
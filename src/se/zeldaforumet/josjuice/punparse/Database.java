@@ -1,215 +1,379 @@
 package se.zeldaforumet.josjuice.punparse;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Connects to an SQL database and inserts data. This class is thread-safe, but
- * performance may be affected if many threads access the same object since the
- * connection to the database only can be used by one thread at a time.
+ * Connects to an SQL database and inserts data. This class is thread-safe. It
+ * opens a pool of connections, each with its own prepared statements, and
+ * every thread that inserts records is given one of them the first time it
+ * does so. A connection can only be used by one thread at a time, so threads
+ * only have to wait for each other if there are more threads than
+ * connections.
+ * <p>
+ * Inserted records are collected in one batch per statement and sent to the
+ * database together, which saves a round trip per record. A batch is sent
+ * when it is full, when the flush interval has passed, when {@link #flush()}
+ * is called and when the database is closed. Each record is kept together
+ * with its {@link InsertCallback}, so whoever sends the batch, the outcome of
+ * each record is reported to the code that inserted it.
  * @author JosJuice
  */
-public final class Database implements AutoCloseable {
+public final class Database implements RecordSink {
     
-    private final Connection connection;
+    /** The number of records that are sent together by default. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    
+    /** How often batches are sent by default, in milliseconds. */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    
+    /** The number of connections that are opened by default. */
+    public static final int DEFAULT_CONNECTIONS = 4;
+    
+    private final PooledConnection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
     private final Type type;
     private final String prefix;
-    private boolean isClosed = false;
+    private final int batchSize;
+    private final Timer flushTimer;
+    private volatile boolean isClosed = false;
     
-    private final PreparedStatement insertPostUser;
-    private final PreparedStatement insertPost;
-    private final PreparedStatement insertTopic;
-    private final PreparedStatement insertForum;
-    private final PreparedStatement insertRedirectForum;
-    private final PreparedStatement insertCategory;
+    private final Insert<PostUser> insertPostUser;
+    private final Insert<PostRow> insertPost;
+    private final Insert<Topic> insertTopic;
+    private final Insert<Forum> insertForum;
+    private final Insert<Forum> insertRedirectForum;
+    private final Insert<Category> insertCategory;
+    
+    /** The connection that each thread uses. */
+    private final ThreadLocal<PooledConnection> threadConnection =
+            new ThreadLocal<PooledConnection>() {
+                @Override protected PooledConnection initialValue() {
+                    int index = nextConnection.getAndIncrement() &
+                                Integer.MAX_VALUE;
+                    return connections[index % connections.length];
+                }
+            };
     
     /**
-     * Sets up a a database. A connection will be established and prepared
+     * Sets up a a database with one connection and without batching. A
+     * connection will be established and prepared statements will be
+     * initialized. When this database is not going to be used anymore, call
+     * the {@link close()} method to free up resources.
+     * @param url the URL used to access the database, for instance
+     * {@code postgresql://localhost/database?user=username&password=password}
+     * or {@code mysql://localhost/database?user=username&password=password}
+     * or {@code sqlite:database.db}. Do not include a preceding {@code jdbc:}.
+     * @param prefix a short string to prefix table names with (can be null)
+     * @throws SQLException if something goes wrong on the SQL side
+     */
+    public Database(String url, String tablePrefix) throws SQLException {
+        this(url, tablePrefix, 1, 0, 1);
+    }
+    
+    /**
+     * Sets up a a database. Connections will be established and prepared
      * statements will be initialized. When this database is not going to be
      * used anymore, call the {@link close()} method to free up resources.
      * @param url the URL used to access the database, for instance
      * {@code postgresql://localhost/database?user=username&password=password}
      * or {@code mysql://localhost/database?user=username&password=password}
      * or {@code sqlite:database.db}. Do not include a preceding {@code jdbc:}.
+     * For MySQL, {@code rewriteBatchedStatements=true} is added to the URL
+     * unless it already is set, so that the driver sends each batch as one
+     * statement.
      * @param prefix a short string to prefix table names with (can be null)
+     * @param batchSize the number of records of each kind to send together
+     * (1 sends every record right away)
+     * @param flushInterval how often batches are sent even if they aren't
+     * full, in milliseconds (0 only sends full batches)
+     * @param connections the number of connections to open. SQLite only lets
+     * one connection write at a time, so only one is opened for SQLite.
      * @throws SQLException if something goes wrong on the SQL side
+     * @throws IllegalArgumentException if {@code batchSize} or
+     * {@code connections} is less than 1 or {@code flushInterval} is negative
      */
-    public Database(String url, String tablePrefix) throws SQLException {
+    public Database(String url, String tablePrefix, int batchSize,
+                    long flushInterval, int connections) throws SQLException {
+        if (batchSize < 1 || flushInterval < 0 || connections < 1) {
+            throw new IllegalArgumentException("The batch size and the " +
+                    "number of connections must be positive and the flush " +
+                    "interval can't be negative.");
+        }
         if (tablePrefix == null) {
             prefix = "";
         } else {
             prefix = tablePrefix;
         }
-        connection = DriverManager.getConnection("jdbc:" + url);
+        this.batchSize = batchSize;
+        if (batchSize > 1 && url.startsWith("mysql:") &&
+            !url.contains("rewriteBatchedStatements=")) {
+            url += (url.contains("?") ? "&" : "?") +
+                   "rewriteBatchedStatements=true";
+        }
+        if (url.startsWith("sqlite:")) {
+            connections = 1;
+        }
         type = Type.MYSQL;          // TODO detect database type
         
-        insertPostUser = connection.prepareStatement("INSERT " + type.ignore +
+        insertPostUser = new Insert<PostUser>("user", "INSERT " + type.ignore +
                 "INTO " + prefix + "users (id, username, title, use_avatar, " +
-                "signature) VALUES(?, ?, ?, ?, ?);");
-        insertPost = connection.prepareStatement("INSERT " + type.ignore +
+                "signature) VALUES(?, ?, ?, ?, ?);") {
+            @Override Object identify(PostUser postUser) {
+                return postUser.getId();
+            }
+            @Override void bind(PreparedStatement statement,
+                                PostUser postUser) throws SQLException {
+                statement.setInt(1, postUser.getId());
+                statement.setString(2, postUser.getUsername());
+                statement.setString(3, postUser.getTitle());
+                statement.setBoolean(4, postUser.getHasAvatar());
+                statement.setString(5, postUser.getSignature());
+            }
+        };
+        insertPost = new Insert<PostRow>("post", "INSERT " + type.ignore +
                 "INTO " + prefix + "posts (id, poster, poster_id, message, " +
                 "hide_smilies, posted, edited, edited_by, topic_id) " +
-                "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?);");
-        insertTopic = connection.prepareStatement("INSERT " + type.ignore +
+                "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?);") {
+            @Override Object identify(PostRow row) {
+                return row.post.getId();
+            }
+            @Override void bind(PreparedStatement statement, PostRow row)
+                    throws SQLException {
+                Post post = row.post;
+                statement.setInt(1, post.getId());
+                statement.setString(2, post.getPoster());
+                statement.setInt(3, post.getPosterId());
+                statement.setString(4, post.getMessage());
+                statement.setBoolean(5, post.getHideSmilies());
+                statement.setLong(6, post.getPosted());
+                if (post.isEdited()) {
+                    statement.setLong(7, post.getEdited());
+                    statement.setString(8, post.getEditedBy());
+                } else {
+                    statement.setNull(7, Types.INTEGER);
+                    statement.setNull(8, Types.VARCHAR);
+                }
+                statement.setInt(9, row.topicId);
+            }
+        };
+        insertTopic = new Insert<Topic>("topic", "INSERT " + type.ignore +
                 "INTO " + prefix + "topics (id, poster, subject, posted, " +
                 "last_post, last_post_id, last_poster, num_views, " +
                 "num_replies, closed, sticky, forum_id) " +
-                "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
-        insertCategory = connection.prepareStatement("INSERT INTO " + prefix +
-                "categories (cat_name, disp_position) VALUES(?, ?);");
-        insertForum = connection.prepareStatement("INSERT " + type.ignore +
+                "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);") {
+            @Override Object identify(Topic topic) {
+                return topic.getId();
+            }
+            @Override void bind(PreparedStatement statement, Topic topic)
+                    throws SQLException {
+                statement.setInt(1, topic.getId());
+                statement.setString(2, topic.getPoster());
+                statement.setString(3, topic.getSubject());
+                statement.setLong(4, topic.getPosted());
+                statement.setLong(5, topic.getLastPosted());
+                statement.setInt(6, topic.getLastPostId());
+                statement.setString(7, topic.getLastPoster());
+                statement.setInt(8, topic.getNumViews());
+                statement.setInt(9, topic.getNumReplies());
+                statement.setBoolean(10, topic.getClosed());
+                statement.setBoolean(11, topic.getSticky());
+                statement.setInt(12, topic.getForumId());
+            }
+        };
+        insertCategory = new Insert<Category>("category", "INSERT INTO " +
+                prefix + "categories (cat_name, disp_position) " +
+                "VALUES(?, ?);") {
+            @Override Object identify(Category category) {
+                return category.getName();
+            }
+            @Override void bind(PreparedStatement statement,
+                                Category category) throws SQLException {
+                statement.setString(1, category.getName());
+                statement.setInt(2, category.getDisplayPosition());
+            }
+        };
+        insertForum = new Insert<Forum>("forum", "INSERT " + type.ignore +
                 "INTO " + prefix + "forums (id, forum_name, forum_desc, " +
                 "num_topics, num_posts, last_post, last_post_id, " +
                 "last_poster, sort_by, disp_position, cat_id) " +
-                "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
-        insertRedirectForum = connection.prepareStatement("INSERT " + 
+                "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);") {
+            @Override Object identify(Forum forum) {
+                return forum.getId();
+            }
+            @Override void bind(PreparedStatement statement, Forum forum)
+                    throws SQLException {
+                statement.setInt(1, forum.getId());
+                statement.setString(2, forum.getName());
+                statement.setString(3, forum.getDescription());
+                statement.setInt(4, forum.getNumTopics());
+                statement.setInt(5, forum.getNumPosts());
+                statement.setLong(6, forum.getLastPosted());
+                statement.setInt(7, forum.getLastPostId());
+                statement.setString(8, forum.getLastPoster());
+                statement.setBoolean(9, forum.getSortByTopicStart());
+                statement.setInt(10, forum.getDisplayPosition());
+                statement.setInt(11, forum.getCategoryId());
+            }
+        };
+        insertRedirectForum = new Insert<Forum>("forum", "INSERT " + 
                 type.ignore + "INTO " + prefix + "forums (forum_name, " +
                 "forum_desc, redirect_url, disp_position, cat_id) " +
-                "VALUES(?, ?, ?, ?, ?);");
+                "VALUES(?, ?, ?, ?, ?);") {
+            @Override Object identify(Forum forum) {
+                return forum.getName();
+            }
+            @Override void bind(PreparedStatement statement, Forum forum)
+                    throws SQLException {
+                statement.setString(1, forum.getName());
+                statement.setString(2, forum.getDescription());
+                statement.setString(3, forum.getRedirectUrl());
+                statement.setInt(4, forum.getDisplayPosition());
+                statement.setInt(5, forum.getCategoryId());
+            }
+        };
+        
+        this.connections = new PooledConnection[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                this.connections[i] = new PooledConnection(url);
+            }
+        } catch (SQLException e) {
+            for (PooledConnection connection : this.connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            throw e;
+        }
+        
+        if (batchSize > 1 && flushInterval > 0) {
+            flushTimer = new Timer("Database flush", true);
+            flushTimer.schedule(new TimerTask() {
+                @Override public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval);
+        } else {
+            flushTimer = null;
+        }
     }
     
+    /**
+     * Sends all batches and closes the connections.
+     * @throws SQLException if something goes wrong on the SQL side
+     */
     @Override public synchronized void close() throws SQLException {
+        if (isClosed) {
+            return;
+        }
         isClosed = true;
-        connection.close();
-        insertPost.close();
-        insertTopic.close();
-        insertForum.close();
-        insertRedirectForum.close();
-        insertCategory.close();
+        if (flushTimer != null) {
+            flushTimer.cancel();
+        }
+        try {
+            for (PooledConnection connection : connections) {
+                connection.flush();
+            }
+        } finally {
+            for (PooledConnection connection : connections) {
+                connection.close();
+            }
+        }
     }
     
     /**
-     * Inserts a user into the database.
-     * @param postUser the user to insert
-     * @throws SQLException if something goes wrong on the SQL side
+     * Sends all batches that aren't empty. Also called regularly by the flush
+     * timer.
+     */
+    @Override public void flush() {
+        for (PooledConnection connection : connections) {
+            connection.flush();
+        }
+    }
+    
+    /**
+     * @return the connection of the current thread
      * @throws IllegalStateException if used after calling {@link close()}
      */
-    public synchronized void insert(PostUser postUser) throws SQLException {
+    private PooledConnection getConnection() {
         if (isClosed) {
             throw new IllegalStateException("Closed databases cannot be used.");
         }
-        
-        insertPostUser.setInt(1, postUser.getId());
-        insertPostUser.setString(2, postUser.getUsername());
-        insertPostUser.setString(3, postUser.getTitle());
-        insertPostUser.setBoolean(4, postUser.getHasAvatar());
-        insertPostUser.setString(5, postUser.getSignature());
-        insertPostUser.executeUpdate();
+        return threadConnection.get();
+    }
+    
+    /**
+     * Inserts a user into the database.
+     * @param postUser the user to insert
+     * @param callback is told when the user has been written or has failed
+     * @throws IllegalStateException if used after calling {@link close()}
+     */
+    @Override public void insert(PostUser postUser, InsertCallback callback) {
+        getConnection().postUsers.add(postUser, callback);
     }
     
     /**
      * Inserts a post into the database.
      * @param post the post to insert
      * @param topicId ID of the topic containing this post.
-     * @throws SQLException if something goes wrong on the SQL side
+     * @param callback is told when the post has been written or has failed
      * @throws IllegalStateException if used after calling {@link close()}
      */
-    public synchronized void insert(Post post, int topicId)
-            throws SQLException {
-        if (isClosed) {
-            throw new IllegalStateException("Closed databases cannot be used.");
-        }
-        
-        insertPost.setInt(1, post.getId());
-        insertPost.setString(2, post.getPoster());
-        insertPost.setInt(3, post.getPosterId());
-        insertPost.setString(4, post.getMessage());
-        insertPost.setBoolean(5, post.getHideSmilies());
-        insertPost.setLong(6, post.getPosted());
-        if (post.isEdited()) {
-            insertPost.setLong(7, post.getEdited());
-            insertPost.setString(8, post.getEditedBy());
-        } else {
-            insertPost.setNull(7, Types.INTEGER);
-            insertPost.setNull(8, Types.VARCHAR);
-        }
-        insertPost.setInt(9, topicId);
-        insertPost.executeUpdate();
+    @Override public void insert(Post post, int topicId,
+                                 InsertCallback callback) {
+        getConnection().posts.add(new PostRow(post, topicId), callback);
     }
     
     /**
      * Inserts a topic into the database.
      * @param topic the topic to insert
-     * @throws SQLException if something goes wrong on the SQL side
+     * @param callback is told when the topic has been written or has failed
      * @throws IllegalStateException if used after calling {@link close()}
      */
-    public synchronized void insert(Topic topic) throws SQLException {
-        if (isClosed) {
-            throw new IllegalStateException("Closed databases cannot be used.");
-        }
-        
+    @Override public void insert(Topic topic, InsertCallback callback) {
         // TODO make moved topics work
         if (topic.isMoved()) {
-            throw new SQLException("A moved topic was not inserted because " +
-                                   "the IDs of moved topics are unknown");
+            callback.failed("A moved topic was not inserted because the IDs " +
+                            "of moved topics are unknown");
+            return;
         }
-        insertTopic.setInt(1, topic.getId());
-        insertTopic.setString(2, topic.getPoster());
-        insertTopic.setString(3, topic.getSubject());
-        insertTopic.setLong(4, topic.getPosted());
-        insertTopic.setLong(5, topic.getLastPosted());
-        insertTopic.setInt(6, topic.getLastPostId());
-        insertTopic.setString(7, topic.getLastPoster());
-        insertTopic.setInt(8, topic.getNumViews());
-        insertTopic.setInt(9, topic.getNumReplies());
-        insertTopic.setBoolean(10, topic.getClosed());
-        insertTopic.setBoolean(11, topic.getSticky());
-        insertTopic.setInt(12, topic.getForumId());
-        insertTopic.executeUpdate();
+        getConnection().topics.add(topic, callback);
     }
     
     /**
      * Inserts a forum into the database.
      * @param forum the forum to insert
-     * @throws SQLException if something goes wrong on the SQL side
+     * @param callback is told when the forum has been written or has failed
      * @throws IllegalStateException if used after calling {@link close()}
      */
-    public synchronized void insert(Forum forum) throws SQLException {
-        if (isClosed) {
-            throw new IllegalStateException("Closed databases cannot be used.");
-        }
-        
+    @Override public void insert(Forum forum, InsertCallback callback) {
         if (forum.isRedirect()) {
-            insertRedirectForum.setString(1, forum.getName());
-            insertRedirectForum.setString(2, forum.getDescription());
-            insertRedirectForum.setString(3, forum.getRedirectUrl());
-            insertRedirectForum.setInt(4, forum.getDisplayPosition());
-            insertRedirectForum.setInt(5, forum.getCategoryId());
-            insertRedirectForum.executeUpdate();
+            getConnection().redirectForums.add(forum, callback);
         } else {
-            insertForum.setInt(1, forum.getId());
-            insertForum.setString(2, forum.getName());
-            insertForum.setString(3, forum.getDescription());
-            insertForum.setInt(4, forum.getNumTopics());
-            insertForum.setInt(5, forum.getNumPosts());
-            insertForum.setLong(6, forum.getLastPosted());
-            insertForum.setInt(7, forum.getLastPostId());
-            insertForum.setString(8, forum.getLastPoster());
-            insertForum.setBoolean(9, forum.getSortByTopicStart());
-            insertForum.setInt(10, forum.getDisplayPosition());
-            insertForum.setInt(11, forum.getCategoryId());
-            insertForum.executeUpdate();
+            getConnection().forums.add(forum, callback);
         }
     }
     
     /**
      * Inserts a category into the database.
      * @param category the category to insert
-     * @throws SQLException if something goes wrong on the SQL side
+     * @param callback is told when the category has been written or has
+     * failed
      * @throws IllegalStateException if used after calling {@link close()}
      */
-    public synchronized void insert(Category category) throws SQLException {
-        if (isClosed) {
-            throw new IllegalStateException("Closed databases cannot be used.");
-        }
-        
-        insertCategory.setString(1, category.getName());
-        insertCategory.setInt(2, category.getDisplayPosition());
-        insertCategory.executeUpdate();
+    @Override public void insert(Category category, InsertCallback callback) {
+        getConnection().categories.add(category, callback);
     }
     
     /**
@@ -218,11 +382,19 @@ public final class Database implements AutoCloseable {
      * @throws SQLException if something goes wrong on the SQL side
      * @throws IllegalStateException if used after calling {@link close()}
      */
-    public synchronized void createTables() throws SQLException {
-        if (isClosed) {
-            throw new IllegalStateException("Closed databases cannot be used.");
+    @Override public void createTables() throws SQLException {
+        PooledConnection connection = getConnection();
+        synchronized (connection) {
+            createTables(connection.connection);
         }
-        
+    }
+    
+    /**
+     * Creates all necessary tables using a connection.
+     * @param connection the connection to use
+     * @throws SQLException if something goes wrong on the SQL side
+     */
+    private void createTables(Connection connection) throws SQLException {
         try (Statement statement = connection.createStatement()) {
             // Create tables
             
@@ -538,6 +710,287 @@ public final class Database implements AutoCloseable {
         }
     }
     
+    /**
+     * An insert statement, and how records are passed to it.
+     * @param <T> the type of the records
+     */
+    private abstract static class Insert<T> {
+        
+        private final String what;
+        private final String sql;
+        
+        /**
+         * @param what what kind of records are inserted, for error messages
+         * @param sql the SQL of the statement
+         */
+        Insert(String what, String sql) {
+            this.what = what;
+            this.sql = sql;
+        }
+        
+        /**
+         * @return something that identifies {@code row} in error messages
+         */
+        abstract Object identify(T row);
+        
+        /**
+         * Sets the parameters of the statement to the values of a record.
+         */
+        abstract void bind(PreparedStatement statement, T row)
+                throws SQLException;
+        
+    }
+    
+    /**
+     * One of the connections to the database, with its own prepared
+     * statements and batches. Only used by one thread at a time, which is
+     * ensured by locking it.
+     */
+    private final class PooledConnection {
+        
+        private final Connection connection;
+        private final ArrayList<Batch<?>> batches = new ArrayList<>();
+        private boolean isClosed = false;
+        
+        private final Batch<PostUser> postUsers;
+        private final Batch<PostRow> posts;
+        private final Batch<Topic> topics;
+        private final Batch<Forum> forums;
+        private final Batch<Forum> redirectForums;
+        private final Batch<Category> categories;
+        
+        /**
+         * Opens a connection and prepares its statements.
+         * @param url the URL of the database, without {@code jdbc:}
+         * @throws SQLException if something goes wrong on the SQL side
+         */
+        PooledConnection(String url) throws SQLException {
+            connection = DriverManager.getConnection("jdbc:" + url);
+            try {
+                postUsers = new Batch<>(this, insertPostUser);
+                posts = new Batch<>(this, insertPost);
+                topics = new Batch<>(this, insertTopic);
+                forums = new Batch<>(this, insertForum);
+                redirectForums = new Batch<>(this, insertRedirectForum);
+                categories = new Batch<>(this, insertCategory);
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+        
+        /**
+         * Sends all records that are waiting in the batches.
+         */
+        synchronized void flush() {
+            if (isClosed) {
+                return;
+            }
+            for (Batch<?> batch : batches) {
+                batch.flush();
+            }
+        }
+        
+        /**
+         * Closes the prepared statements and the connection without sending
+         * the batches.
+         * @throws SQLException if something goes wrong on the SQL side
+         */
+        synchronized void close() throws SQLException {
+            isClosed = true;
+            try {
+                for (Batch<?> batch : batches) {
+                    batch.statement.close();
+                }
+            } finally {
+                connection.close();
+            }
+        }
+        
+    }
+    
+    /**
+     * The records that are waiting to be sent with one prepared statement of
+     * a {@link PooledConnection}. Only used while the connection is locked.
+     * @param <T> the type of the records
+     */
+    private final class Batch<T> {
+        
+        private final PooledConnection owner;
+        private final Insert<T> insert;
+        private final PreparedStatement statement;
+        private final ArrayList<Row<T>> rows = new ArrayList<>();
+        
+        /**
+         * Prepares a statement and adds the batch to its connection.
+         * @param owner the connection to prepare the statement with
+         * @param insert the statement to prepare
+         * @throws SQLException if something goes wrong on the SQL side
+         */
+        Batch(PooledConnection owner, Insert<T> insert) throws SQLException {
+            this.owner = owner;
+            this.insert = insert;
+            statement = owner.connection.prepareStatement(insert.sql);
+            owner.batches.add(this);
+        }
+        
+        /**
+         * Adds a record to the batch, and sends the batch if it is full.
+         * @param record the record to add
+         * @param callback is told when the record has been written or has
+         * failed
+         * @throws IllegalStateException if the connection has been closed
+         */
+        void add(T record, InsertCallback callback) {
+            synchronized (owner) {
+                if (owner.isClosed) {
+                    throw new IllegalStateException("Closed databases " +
+                                                    "cannot be used.");
+                }
+                rows.add(new Row<>(record, callback));
+                if (rows.size() >= batchSize) {
+                    flush();
+                }
+            }
+        }
+        
+        /**
+         * Sends all records in the batch and empties it.
+         */
+        void flush() {
+            if (rows.isEmpty()) {
+                return;
+            }
+            ArrayList<Row<T>> sent = new ArrayList<>(rows);
+            rows.clear();
+            execute(sent);
+        }
+        
+        /**
+         * Inserts records and tells their callbacks how it went. If the batch
+         * fails, the records that may have failed are split in halves that
+         * are retried separately, until only the records that fail on their
+         * own are left.
+         * @param rows the records to insert
+         */
+        private void execute(List<Row<T>> rows) {
+            if (rows.isEmpty()) {
+                return;
+            }
+            if (rows.size() == 1) {
+                Row<T> row = rows.get(0);
+                try {
+                    insert.bind(statement, row.record);
+                    statement.executeUpdate();
+                } catch (SQLException e) {
+                    row.callback.failed("Couldn't insert " + insert.what +
+                                        " " + insert.identify(row.record) +
+                                        ": " + e.getLocalizedMessage());
+                    return;
+                }
+                row.callback.inserted();
+                return;
+            }
+            try {
+                for (Row<T> row : rows) {
+                    insert.bind(statement, row.record);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } catch (BatchUpdateException e) {
+                clearBatch();
+                List<Row<T>> retried = getUnfinished(rows,
+                                                     e.getUpdateCounts());
+                if (retried.size() < rows.size()) {
+                    execute(retried);
+                } else {
+                    int half = rows.size() / 2;
+                    execute(rows.subList(0, half));
+                    execute(rows.subList(half, rows.size()));
+                }
+                return;
+            } catch (SQLException e) {
+                // Not caused by any particular record, so retrying won't help
+                clearBatch();
+                for (Row<T> row : rows) {
+                    row.callback.failed("Couldn't insert " + insert.what +
+                                        " " + insert.identify(row.record) +
+                                        ": " + e.getLocalizedMessage());
+                }
+                return;
+            }
+            for (Row<T> row : rows) {
+                row.callback.inserted();
+            }
+        }
+        
+        /**
+         * Finds the records of a failed batch that may not have been inserted,
+         * and tells the callbacks of the others that they were inserted.
+         * Depending on the driver, the update counts either cover every
+         * record, or stop at the record that failed.
+         * @param rows the records of the batch
+         * @param counts the update counts of the failed batch
+         * @return the records that failed or weren't executed
+         */
+        private List<Row<T>> getUnfinished(List<Row<T>> rows, int[] counts) {
+            if (counts == null) {
+                return rows;
+            }
+            ArrayList<Row<T>> unfinished = new ArrayList<>();
+            for (int i = 0; i < rows.size(); i++) {
+                if (i >= counts.length ||
+                    counts[i] == Statement.EXECUTE_FAILED) {
+                    unfinished.add(rows.get(i));
+                } else {
+                    rows.get(i).callback.inserted();
+                }
+            }
+            return unfinished;
+        }
+        
+        /**
+         * Removes anything that a failed batch left in the statement.
+         */
+        private void clearBatch() {
+            try {
+                statement.clearBatch();
+            } catch (SQLException e) {}
+        }
+        
+    }
+    
+    /**
+     * A record that is waiting in a batch, together with its callback.
+     * @param <T> the type of the record
+     */
+    private static final class Row<T> {
+        
+        private final T record;
+        private final InsertCallback callback;
+        
+        Row(T record, InsertCallback callback) {
+            this.record = record;
+            this.callback = callback;
+        }
+        
+    }
+    
+    /**
+     * A post together with the ID of the topic it is inserted into.
+     */
+    private static final class PostRow {
+        
+        private final Post post;
+        private final int topicId;
+        
+        PostRow(Post post, int topicId) {
+            this.post = post;
+            this.topicId = topicId;
+        }
+        
+    }
+    
     private enum Type {
         MYSQL("INT(10) UNSIGNED", "MEDIUMINT(8) UNSIGNED", "SMALLINT(6)",
               "TINYINT(3) UNSIGNED", "TINYINT(1)", "FLOAT",
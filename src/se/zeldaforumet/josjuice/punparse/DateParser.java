@@ -1,25 +1,91 @@
 package se.zeldaforumet.josjuice.punparse;
 
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Parses date strings to Unix timestamps. Thread safe.
+ * Parses date strings to Unix timestamps. PunBB writes dates from today and
+ * yesterday as {@code Today} and {@code Yesterday} followed by the time, and
+ * those are resolved relative to the current date when they are parsed, so
+ * that they still are right after midnight when PunParse keeps running.
+ * Thread safe, without locking.
  * @author JosJuice
  */
 public final class DateParser {
     
-    private final SimpleDateFormat dateFormat;
+    /** Returned by {@link #tryParse(String)} if the date can't be parsed. */
+    public static final long INVALID_DATE = Long.MIN_VALUE;
+    
+    /** The cache is emptied when it reaches this number of dates. */
+    private static final int MAX_CACHE_SIZE = 64 * 1024;
+    
+    private static final String TODAY = "Today ";
+    private static final String YESTERDAY = "Yesterday ";
+    
+    // Never used for parsing, only cloned, so it can be shared by all threads
+    private final SimpleDateFormat prototype;
+    
+    private final ThreadLocal<SimpleDateFormat> dateFormats =
+            new ThreadLocal<SimpleDateFormat>() {
+        @Override protected SimpleDateFormat initialValue() {
+            return (SimpleDateFormat) prototype.clone();
+        }
+    };
+    
+    /*
+     * Dates that already have been parsed. Many posts are made in the same
+     * minute, so the same strings show up over and over again. Dates from
+     * today and yesterday are never cached, since they change at midnight.
+     * Key: Date string
+     * Value: Unix timestamp
+     */
+    private final ConcurrentHashMap<String, Long> cache =
+            new ConcurrentHashMap<>();
+    
+    private final TimeZone timeZone;
+    
+    // Formats only the date part, or null if the pattern doesn't have a date
+    // part followed by a space and a time part. Only cloned, like prototype
+    private final SimpleDateFormat dateOnly;
+    
+    // The date part of today and yesterday, replaced when the day is over
+    private volatile RelativeDays relativeDays;
     
     /**
-     * Creates a {@code DateParser}.
+     * Creates a {@code DateParser} that uses the default time zone.
      * @param pattern the {@link SimpleDateFormat} pattern to use for parsing
      * @throws IllegalArgumentException if the pattern is invalid
      * @throws NullPointerException if the pattern is {@code null}
      */
     public DateParser(String pattern) {
-        dateFormat = new SimpleDateFormat(pattern);
+        this(pattern, TimeZone.getDefault());
+    }
+    
+    /**
+     * Creates a {@code DateParser}.
+     * @param pattern the {@link SimpleDateFormat} pattern to use for parsing
+     * @param timeZone the time zone that dates are written in
+     * @throws IllegalArgumentException if the pattern is invalid
+     * @throws NullPointerException if the pattern is {@code null}
+     */
+    public DateParser(String pattern, TimeZone timeZone) {
+        prototype = new SimpleDateFormat(pattern);
+        prototype.setTimeZone(timeZone);
+        this.timeZone = timeZone;
+        
+        int space = pattern.indexOf(' ');
+        if (space == -1) {
+            dateOnly = null;
+        } else {
+            dateOnly = new SimpleDateFormat(pattern.substring(0, space));
+            dateOnly.setTimeZone(timeZone);
+        }
     }
     
     /**
@@ -27,10 +93,106 @@ public final class DateParser {
      * @return date as a Unix timestamp (seconds since 1970-01-01 00:00:00 UTC)
      * @throws ParseException if the date cannot be parsed
      */
-    public synchronized long parse(String date) throws ParseException {
-        // TODO time zones
-        long dateMilliseconds = dateFormat.parse(date).getTime();
-        return TimeUnit.MILLISECONDS.toSeconds(dateMilliseconds);
+    public long parse(String date) throws ParseException {
+        long result = tryParse(date);
+        if (result == INVALID_DATE) {
+            throw new ParseException(getErrorMessage(date), 0);
+        }
+        return result;
+    }
+    
+    /**
+     * Parses a date that matches this {@code DateParser}'s pattern, without
+     * throwing an exception if it can't be parsed.
+     * @return date as a Unix timestamp (seconds since 1970-01-01 00:00:00 UTC),
+     * or {@link #INVALID_DATE} if the date cannot be parsed
+     */
+    public long tryParse(String date) {
+        Long cached = cache.get(date);
+        if (cached != null) {
+            return cached;
+        }
+        
+        String absoluteDate = date;
+        boolean relative = false;
+        if (dateOnly != null) {
+            if (date.startsWith(TODAY)) {
+                absoluteDate = getRelativeDays().today +
+                               date.substring(TODAY.length() - 1);
+                relative = true;
+            } else if (date.startsWith(YESTERDAY)) {
+                absoluteDate = getRelativeDays().yesterday +
+                               date.substring(YESTERDAY.length() - 1);
+                relative = true;
+            }
+        }
+        Date parsed = dateFormats.get().parse(absoluteDate,
+                                              new ParsePosition(0));
+        if (parsed == null) {
+            return INVALID_DATE;
+        }
+        long result = TimeUnit.MILLISECONDS.toSeconds(parsed.getTime());
+        if (relative) {
+            return result;
+        }
+        
+        // Keep the memory use bounded. Recent dates will soon be cached again
+        if (cache.size() >= MAX_CACHE_SIZE) {
+            cache.clear();
+        }
+        cache.put(date, result);
+        return result;
+    }
+    
+    /**
+     * @return the date part of today and yesterday, as of now
+     */
+    private RelativeDays getRelativeDays() {
+        long now = System.currentTimeMillis();
+        RelativeDays days = relativeDays;
+        if (days == null || now < days.start || now >= days.end) {
+            // Several threads may do this at once after midnight, but they
+            // all get the same result
+            days = new RelativeDays(now);
+            relativeDays = days;
+        }
+        return days;
+    }
+    
+    /**
+     * @param date a date that can't be parsed
+     * @return a message describing why the date can't be parsed
+     */
+    public static String getErrorMessage(String date) {
+        return "Unparseable date: \"" + date + "\"";
+    }
+    
+    /**
+     * The date part of today and yesterday, and when today starts and ends.
+     */
+    private final class RelativeDays {
+        
+        private final long start;
+        private final long end;
+        private final String today;
+        private final String yesterday;
+        
+        private RelativeDays(long now) {
+            SimpleDateFormat format = (SimpleDateFormat) dateOnly.clone();
+            Calendar calendar = Calendar.getInstance(timeZone);
+            calendar.setTimeInMillis(now);
+            today = format.format(calendar.getTime());
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            start = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, -1);
+            yesterday = format.format(calendar.getTime());
+            calendar.add(Calendar.DAY_OF_MONTH, 2);
+            end = calendar.getTimeInMillis();
+        }
+        
     }
     
 }
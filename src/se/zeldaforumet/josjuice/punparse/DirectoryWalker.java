@@ -0,0 +1,99 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds all files in a directory, including subdirectories, and submits them
+ * to a {@link ParseScheduler} as soon as they are found. Archives and WARC
+ * files are read using an {@link ArchiveReader} or a {@link WarcReader}
+ * instead of being parsed. Subdirectories are
+ * walked in parallel, and no list of all files is ever built, so parsing can
+ * start right away even if there are 100000s of files.
+ * @author JosJuice
+ */
+public final class DirectoryWalker {
+
+    private final ParseScheduler scheduler;
+    private final ArchiveReader archiveReader;
+    private final WarcReader warcReader;
+    private final UserInterface ui;
+
+    /**
+     * Creates a {@code DirectoryWalker}.
+     * @param scheduler A {@link ParseScheduler} to submit found files to.
+     * @param ui A {@link UserInterface} for error display, or {@code null}.
+     */
+    public DirectoryWalker(ParseScheduler scheduler, UserInterface ui) {
+        this.scheduler = scheduler;
+        this.archiveReader = new ArchiveReader(scheduler, ui);
+        this.warcReader = new WarcReader(scheduler, ui);
+        this.ui = ui;
+    }
+
+    /**
+     * Finds all files in a directory and submits them for parsing. Returns
+     * once all files have been found, which may be before they all have been
+     * parsed.
+     * @param directory The directory to find files in. If it can't be read, an
+     * error will be displayed and it will be treated as an empty directory.
+     * @param threads the number of threads to use for walking subdirectories
+     */
+    public void walk(Path directory, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new WalkAction(directory));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Walks one directory. Subdirectories are forked off as new actions.
+     */
+    private final class WalkAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        private WalkAction(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override protected void compute() {
+            ArrayList<WalkAction> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> stream =
+                    Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    if (Files.isDirectory(path)) {
+                        WalkAction action = new WalkAction(path);
+                        action.fork();
+                        subdirectories.add(action);
+                    } else if (WarcReader.isWarc(path.toFile())) {
+                        warcReader.read(path.toFile());
+                    } else if (ArchiveReader.isArchive(path.toFile())) {
+                        archiveReader.read(path.toFile());
+                    } else {
+                        scheduler.submit(path.toFile());
+                    }
+                }
+            } catch (IOException e) {
+                if (ui != null) {
+                    ui.printError("Couldn't read directory " + directory +
+                                  ": " + e.getLocalizedMessage());
+                }
+            }
+            for (WalkAction action : subdirectories) {
+                action.join();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,217 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory, including subdirectories, and submits files to a
+ * {@link ParseScheduler} once they have been written. There is no portable way
+ * to find out when a file is closed, so a file is submitted once it hasn't
+ * been modified for a short while. Archives and WARC files are read using an
+ * {@link ArchiveReader} or a {@link WarcReader}, like in
+ * {@link DirectoryWalker}.
+ * @author JosJuice
+ */
+public final class DirectoryWatcher {
+
+    /** How long a file must be left alone before it is submitted. */
+    private static final long QUIET_MILLIS = 1000;
+
+    private final ParseScheduler scheduler;
+    private final ArchiveReader archiveReader;
+    private final WarcReader warcReader;
+    private final UserInterface ui;
+    private final WatchService watchService;
+
+    /*
+     * Directories that are being watched.
+     * Key: Key the directory is registered with
+     * Value: The directory
+     */
+    private final HashMap<WatchKey, Path> directories = new HashMap<>();
+
+    /*
+     * Files that have been written to but not submitted yet.
+     * Key: The file
+     * Value: The last time it was written to
+     */
+    private final HashMap<Path, Long> pending = new HashMap<>();
+
+    /**
+     * Creates a {@code DirectoryWatcher}.
+     * @param scheduler A {@link ParseScheduler} to submit written files to.
+     * @param ui A {@link UserInterface} for error display, or {@code null}.
+     * @throws IOException if the file system can't be watched
+     */
+    public DirectoryWatcher(ParseScheduler scheduler, UserInterface ui)
+            throws IOException {
+        this.scheduler = scheduler;
+        this.archiveReader = new ArchiveReader(scheduler, ui);
+        this.warcReader = new WarcReader(scheduler, ui);
+        this.ui = ui;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Starts watching a directory and all of its subdirectories. Files that
+     * already exist are not submitted. This should be called before the
+     * existing files are walked, so that no files are missed in between.
+     * @param directory the directory to watch
+     * @throws IOException if the directory can't be watched
+     */
+    public void register(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attributes) throws IOException {
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                synchronized (directories) {
+                    directories.put(key, dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Submits files as they are written to the registered directories. Blocks
+     * until {@link #stop()} is called. Files that still are being written
+     * when this object is stopped are not submitted.
+     */
+    public void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(QUIET_MILLIS / 4,
+                                                 TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handleEvents(key);
+                }
+                submitQuietFiles();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stop() was called
+        }
+    }
+
+    /**
+     * Makes {@link #watch()} return.
+     */
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            if (ui != null) {
+                ui.printError("Couldn't stop watching: " +
+                              e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles the events of a directory that has changed.
+     * @param key the key of the directory
+     */
+    private void handleEvents(WatchKey key) {
+        Path directory;
+        synchronized (directories) {
+            directory = directories.get(key);
+        }
+        long now = System.currentTimeMillis();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, so check all files in the directory
+                addPendingFiles(directory, now);
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    try {
+                        register(path);
+                    } catch (IOException e) {
+                        if (ui != null) {
+                            ui.printError("Couldn't watch directory " + path +
+                                          ": " + e.getLocalizedMessage());
+                        }
+                    }
+                    // Files may have been created before it was registered
+                    addPendingFiles(path, now);
+                }
+            } else {
+                pending.put(path, now);
+            }
+        }
+        if (!key.reset()) {
+            synchronized (directories) {
+                directories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Marks all files in a directory and its subdirectories as written.
+     * @param directory the directory
+     * @param time the time to mark the files as written at
+     */
+    private void addPendingFiles(Path directory, long time) {
+        try (DirectoryStream<Path> stream =
+                Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    addPendingFiles(path, time);
+                } else {
+                    pending.put(path, time);
+                }
+            }
+        } catch (IOException e) {
+            if (ui != null) {
+                ui.printError("Couldn't read directory " + directory + ": " +
+                              e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Submits the files that haven't been written to for a while.
+     */
+    private void submitQuietFiles() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Long>> iterator =
+                pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Long> entry = iterator.next();
+            if (now - entry.getValue() < QUIET_MILLIS) {
+                continue;
+            }
+            iterator.remove();
+            Path path = entry.getKey();
+            if (!Files.isRegularFile(path)) {
+                continue;       // Deleted or renamed while waiting
+            }
+            if (WarcReader.isWarc(path.toFile())) {
+                warcReader.read(path.toFile());
+            } else if (ArchiveReader.isArchive(path.toFile())) {
+                archiveReader.read(path.toFile());
+            } else {
+                scheduler.submitWatched(path.toFile());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the contents of pages that have been seen so that exact duplicates
+ * can be skipped. Pages are compared using {@link ContentHash}, so only a
+ * 64-bit hash is stored for each page. Thread safe.
+ * @author JosJuice
+ */
+public final class DuplicateFilter {
+    
+    private final Set<Long> seenHashes =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    
+    /**
+     * Marks a page as seen.
+     * @param hash the {@link ContentHash} of the raw bytes of the page
+     * @return {@code true} if the page hasn't been seen before, {@code false}
+     * if it is a duplicate
+     */
+    public boolean add(long hash) {
+        return seenHashes.add(hash);
+    }
+    
+    /**
+     * Marks a page as seen.
+     * @param bytes the raw bytes of the page (the position isn't changed)
+     * @return {@code true} if the page hasn't been seen before, {@code false}
+     * if it is a duplicate
+     */
+    public boolean add(ByteBuffer bytes) {
+        return add(ContentHash.hash(bytes));
+    }
+    
+}
@@ -0,0 +1,133 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+
+/**
+ * The paths from the root element of a record to the elements that its fields
+ * are read from. Every page of a forum comes from the same PunBB template, so
+ * the paths are learned from the first record that is searched, and following
+ * them for later records is much cheaper than searching every element of the
+ * record by tag and class name again. Each element that a path leads to is
+ * checked against the element the path was learned from, and if it doesn't
+ * match, the record has to be searched and the plan learned again. Thread
+ * safe.
+ * @author JosJuice
+ */
+final class ExtractionPlan {
+
+    private volatile Path[] paths = null;
+
+    /**
+     * Follows the learned paths from the root element of a record.
+     * @param root the root element of a record
+     * @return the elements that the paths lead to, in the order that they
+     * were given to {@link #learn}, or {@code null} if nothing has been
+     * learned yet or any path doesn't match this record
+     */
+    Element[] follow(Element root) {
+        Path[] paths = this.paths;
+        if (paths == null) {
+            return null;
+        }
+        Element[] elements = new Element[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            elements[i] = paths[i].follow(root);
+            if (elements[i] == null) {
+                return null;
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Learns the paths to elements that were found by searching a record,
+     * replacing any paths that were learned before. If any of the elements is
+     * {@code null}, nothing is learned, so a record with missing fields never
+     * replaces a plan that works for complete records.
+     * @param root the root element of the record
+     * @param elements elements inside the record, in the order that
+     * {@link #follow} should return them
+     */
+    void learn(Element root, Element... elements) {
+        Path[] paths = new Path[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i] == null) {
+                return;
+            }
+            paths[i] = Path.of(root, elements[i]);
+            if (paths[i] == null) {
+                return;
+            }
+        }
+        this.paths = paths;
+    }
+
+    /**
+     * The child node indices leading from a root element to an element, and
+     * the tag name and class that the element must have.
+     */
+    private static final class Path {
+
+        private final int[] indices;
+        private final String tagName;
+        private final String className;
+
+        private Path(int[] indices, String tagName, String className) {
+            this.indices = indices;
+            this.tagName = tagName;
+            this.className = className;
+        }
+
+        /**
+         * @return the path from {@code root} to {@code element}, or
+         * {@code null} if {@code element} isn't inside {@code root}
+         */
+        private static Path of(Element root, Element element) {
+            int depth = 0;
+            for (Node node = element; node != root; node = node.parent()) {
+                if (node == null) {
+                    return null;
+                }
+                depth++;
+            }
+            int[] indices = new int[depth];
+            Node node = element;
+            for (int i = depth - 1; i >= 0; i--) {
+                indices[i] = node.siblingIndex();
+                node = node.parent();
+            }
+            return new Path(indices, element.tagName(), element.className());
+        }
+
+        /**
+         * @return the element this path leads to from {@code root}, or
+         * {@code null} if there is no element with the right tag name and
+         * class there
+         */
+        private Element follow(Element root) {
+            Node node = root;
+            for (int index : indices) {
+                if (index >= node.childNodeSize()) {
+                    return null;
+                }
+                node = node.childNode(index);
+            }
+            if (!(node instanceof Element)) {
+                return null;
+            }
+            Element element = (Element) node;
+            if (!element.tagName().equals(tagName)) {
+                return null;
+            }
+            // Elements without a class, like links, may get one on some rows
+            if (!className.isEmpty() &&
+                !element.className().equals(className)) {
+                return null;
+            }
+            return element;
+        }
+
+    }
+
+}
@@ -1,7 +1,10 @@
 package se.zeldaforumet.josjuice.punparse;
 
-import java.text.ParseException;
+import java.util.Collection;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 
 /**
  * Represents a record in the PunBB 'forums' table. Immutable.
@@ -9,6 +12,9 @@ import org.jsoup.nodes.Element;
  */
 public final class Forum {
     
+    /** Learned from the first forum that has to be searched. */
+    private static final ExtractionPlan plan = new ExtractionPlan();
+    
     private final boolean isRedirect;
     
     // All of the following variables correspond to database columns.
@@ -27,127 +33,138 @@ public final class Forum {
     private final int categoryId;
     
     /**
-     * Constructs a {@code Forum}.
+     * Parses a forum. If required parts of HTML are missing, an error is added
+     * to {@code errors} instead of throwing an exception.
      * @param element An HTML {@code tr} element from {@code index.php}.
      * @param dateParser A {@link DateParser} for parsing dates.
      * @param displayPosition Forums are sorted by this value when displayed.
      * @param categoryId The ID of the category that contains this forum.
-     * @throws IllegalArgumentException if required parts of HTML are missing
+     * @param errors A list to add an error to if the forum can't be parsed.
+     * @return the forum, or {@code null} if it can't be parsed
      */
-    public Forum(Element element, DateParser dateParser, int displayPosition,
-                 int categoryId) throws IllegalArgumentException {
+    public static Forum parse(Element element, DateParser dateParser,
+                              int displayPosition, int categoryId,
+                              Collection<String> errors) {
         // Reject elements that would cause problems later
         if (element == null || !element.tagName().equals("tr")) {
-            throw new IllegalArgumentException("Invalid forum element.");
+            return InputErrors.add(errors, "Invalid forum element.");
         }
         
-        // Check if this is a redirect. We don't need to wrap this in a try
-        // statement, becuase we already know that element is not null
-        isRedirect = element.hasClass("iredirect");
+        // Check if this is a redirect
+        boolean isRedirect = element.hasClass("iredirect");
         
-        try {
-            // Get the link to the forum
-            String url = element.getElementsByTag("a").first().attr("href");
-            if (isRedirect) {
-                // Store the destination of the link as a redirect URL
-                id = 0;
-                redirectUrl = url;
-            } else {
-                try {
-                    // Find the forum ID
-                    id = Integer.parseInt(TextParser.getQueryValue(url, "id"));
-                } catch (NullPointerException | NumberFormatException e) {
-                    throw new IllegalArgumentException("Couldn't get forum ID.",
-                                                       e);
-                }
-                redirectUrl = null;
+        Extractor fields = Extractor.extract(element);
+        
+        if (fields.firstLink == null) {
+            return InputErrors.add(errors, "Couldn't get forum URL.");
+        }
+        // Get the link to the forum
+        String url = fields.firstLink.attr("href");
+        int id;
+        String redirectUrl;
+        if (isRedirect) {
+            // Store the destination of the link as a redirect URL
+            id = 0;
+            redirectUrl = url;
+        } else {
+            // Find the forum ID
+            id = TextParser.parseInt(TextParser.getQueryValue(url, "id"));
+            if (id == TextParser.NOT_A_NUMBER) {
+                return InputErrors.add(errors, "Couldn't get forum ID.");
             }
-        } catch (NullPointerException e) {
-            throw new IllegalArgumentException("Couldn't get forum URL.", e);
+            redirectUrl = null;
         }
         
-        try {
-            // Find the name
-            name = element.getElementsByTag("h3").first().text();
-        } catch (NullPointerException e) {
-            throw new IllegalArgumentException("Couldn't get name of forum " +
-                                               id, e);
+        if (fields.h3 == null) {
+            return InputErrors.add(errors, "Couldn't get name of forum " + id);
         }
+        String name = fields.h3.text();
         
         // Find the description. It may be null
-        Element tclcon = element.getElementsByClass("tclcon").first();
-        if (tclcon != null) {
-            description = tclcon.ownText();
-        } else {
-            description = null;
+        String description = null;
+        if (fields.tclcon != null) {
+            description = fields.tclcon.ownText();
         }
         
-        if (isRedirect) {
-            numTopics = 0;
-            numPosts = 0;
-        } else {
-            try {
-                // Find number of topics (in .tc2)
-                numTopics = Integer.parseInt(element.getElementsByClass("tc2").
-                                             first().text());
-            } catch (NullPointerException | NumberFormatException e) {
-                throw new IllegalArgumentException("Couldn't get number of " +
-                                                   "topics in forum " + id, e);
+        int numTopics = 0;
+        int numPosts = 0;
+        if (!isRedirect) {
+            // Find number of topics (in .tc2)
+            numTopics = fields.tc2 == null ? TextParser.NOT_A_NUMBER
+                    : TextParser.parseInt(fields.tc2.text());
+            if (numTopics == TextParser.NOT_A_NUMBER) {
+                return InputErrors.add(errors, "Couldn't get number of " +
+                                               "topics in forum " + id);
             }
-            
-            try {
-                // Find number of posts (in .tc3)
-                numPosts = Integer.parseInt(element.getElementsByClass("tc3").
-                                            first().text());
-            } catch (NullPointerException | NumberFormatException e) {
-                throw new IllegalArgumentException("Couldn't get number of " +
-                                                   "posts in forum " + id, e);
+            // Find number of posts (in .tc3)
+            numPosts = fields.tc3 == null ? TextParser.NOT_A_NUMBER
+                    : TextParser.parseInt(fields.tc3.text());
+            if (numPosts == TextParser.NOT_A_NUMBER) {
+                return InputErrors.add(errors, "Couldn't get number of " +
+                                               "posts in forum " + id);
             }
         }
         
-        try {
-            // Find information about recent post
-            Element tcr = element.getElementsByClass("tcr").first();
-            if (!tcr.hasText() || tcr.text().equals("\u00A0")) {
-                // There is no recent post, so we use the default values.
-                // This applies to empty forums and redirect forums.
-                lastPosted = 0;
-                lastPostId = 0;
-                lastPoster = null;
-            } else {
-                // Find the link to the post
-                Element postLink = tcr.getElementsByTag("a").first();
-                // Find post ID
-                String postUrl = postLink.attr("href");
-                lastPostId = Integer.parseInt(
-                        TextParser.getQueryValue(postUrl, "pid"));
-                // Find last date posted
-                lastPosted = dateParser.parse(postLink.text());
-                
-                try {
-                    // Find poster username
-                    // TODO remove the "by " at the beginning
-                    lastPoster=tcr.getElementsByClass("byuser").first().text();
-                } catch (NullPointerException | IndexOutOfBoundsException e) {
-                    throw new IllegalArgumentException("Couldn't get last " +
-                                                       "poster in forum " + id,
-                                                       e);
-                }
+        // Find information about recent post
+        Element tcr = fields.tcr;
+        if (tcr == null) {
+            return InputErrors.add(errors, "Couldn't get ID of last post in " +
+                                           "forum " + id);
+        }
+        long lastPosted = 0;
+        int lastPostId = 0;
+        String lastPoster = null;
+        // If there is no recent post, the default values are used. This
+        // applies to empty forums and redirect forums
+        if (tcr.hasText() && !tcr.text().equals("\u00A0")) {
+            // Find the link to the post, and the post ID
+            Element postLink = fields.tcrLink;
+            lastPostId = postLink == null ? TextParser.NOT_A_NUMBER
+                    : TextParser.parseInt(TextParser.getQueryValue(
+                            postLink.attr("href"), "pid"));
+            if (lastPostId == TextParser.NOT_A_NUMBER) {
+                return InputErrors.add(errors, "Couldn't get ID of last " +
+                                               "post in forum " + id);
+            }
+            // Find last date posted
+            String date = postLink.text();
+            lastPosted = dateParser.tryParse(date);
+            if (lastPosted == DateParser.INVALID_DATE) {
+                return InputErrors.add(errors,
+                                       DateParser.getErrorMessage(date));
+            }
+            
+            if (fields.tcrByuser == null) {
+                return InputErrors.add(errors, "Couldn't get last poster in " +
+                                               "forum " + id);
             }
-        } catch (NullPointerException | NumberFormatException e) {
-            throw new IllegalArgumentException("Couldn't get ID of last " +
-                                               "post in forum " + id, e);
-        } catch (ParseException e) {
-            throw new IllegalArgumentException(e.getLocalizedMessage());
+            // Find poster username
+            // TODO remove the "by " at the beginning
+            lastPoster = StringPool.intern(fields.tcrByuser.text());
         }
         
+        return new Forum(isRedirect, id, name, description, redirectUrl,
+                         numTopics, numPosts, lastPosted, lastPostId,
+                         lastPoster, displayPosition, categoryId);
+    }
+    
+    private Forum(boolean isRedirect, int id, String name,
+                  String description, String redirectUrl, int numTopics,
+                  int numPosts, long lastPosted, int lastPostId,
+                  String lastPoster, int displayPosition, int categoryId) {
+        this.isRedirect = isRedirect;
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        this.redirectUrl = redirectUrl;
+        this.numTopics = numTopics;
+        this.numPosts = numPosts;
+        this.lastPosted = lastPosted;
+        this.lastPostId = lastPostId;
+        this.lastPoster = lastPoster;
         // TODO get the actual value of this somehow
-        sortByTopicStart = false;
-        
-        // Set display position
+        this.sortByTopicStart = false;
         this.displayPosition = displayPosition;
-        
-        // Set category ID
         this.categoryId = categoryId;
     }
     
@@ -245,4 +262,92 @@ public final class Forum {
         return categoryId;
     }
     
+    /**
+     * Finds all elements that forum fields are read from in one traversal of a
+     * {@code tr} element.
+     */
+    private static final class Extractor implements NodeVisitor {
+        
+        private Element firstLink = null;
+        private Element h3 = null;
+        private Element tclcon = null;
+        private Element tc2 = null;
+        private Element tc3 = null;
+        private Element tcr = null;
+        private boolean isInTcr = false;
+        private Element tcrLink = null;
+        private Element tcrByuser = null;
+        
+        /**
+         * Finds the fields of a forum by following the {@link ExtractionPlan}
+         * of forums. If the plan doesn't match, the forum is searched in one
+         * traversal instead, and the plan is learned from it.
+         * @param element a {@code tr} element
+         * @return an {@code Extractor} with the fields of the forum
+         */
+        private static Extractor extract(Element element) {
+            Extractor fields = new Extractor();
+            Element[] planned = plan.follow(element);
+            if (planned != null) {
+                fields.firstLink = planned[0];
+                fields.h3 = planned[1];
+                fields.tclcon = planned[2];
+                fields.tc2 = planned[3];
+                fields.tc3 = planned[4];
+                fields.tcr = planned[5];
+                // These may be missing, but are in a small cell
+                fields.tcrLink = fields.tcr.getElementsByTag("a").first();
+                fields.tcrByuser =
+                        fields.tcr.getElementsByClass("byuser").first();
+            } else {
+                new NodeTraversor(fields).traverse(element);
+                plan.learn(element, fields.firstLink, fields.h3,
+                           fields.tclcon, fields.tc2, fields.tc3, fields.tcr);
+            }
+            return fields;
+        }
+        
+        @Override public void head(Node node, int depth) {
+            if (!(node instanceof Element)) {
+                return;
+            }
+            Element element = (Element) node;
+            switch (element.tagName()) {
+                case "a":
+                    if (firstLink == null) {
+                        firstLink = element;
+                    }
+                    if (isInTcr && tcrLink == null) {
+                        tcrLink = element;
+                    }
+                    break;
+                case "h3":
+                    if (h3 == null) {
+                        h3 = element;
+                    }
+                    break;
+            }
+            if (isInTcr && tcrByuser == null && element.hasClass("byuser")) {
+                tcrByuser = element;
+            }
+            if (tclcon == null && element.hasClass("tclcon")) {
+                tclcon = element;
+            } else if (tc2 == null && element.hasClass("tc2")) {
+                tc2 = element;
+            } else if (tc3 == null && element.hasClass("tc3")) {
+                tc3 = element;
+            } else if (tcr == null && element.hasClass("tcr")) {
+                tcr = element;
+                isInTcr = true;
+            }
+        }
+        
+        @Override public void tail(Node node, int depth) {
+            if (node == tcr) {
+                isInTcr = false;
+            }
+        }
+        
+    }
+    
 }
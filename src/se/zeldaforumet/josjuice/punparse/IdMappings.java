@@ -1,6 +1,7 @@
 package se.zeldaforumet.josjuice.punparse;
 
-import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.TreeMap;
 
@@ -25,7 +26,25 @@ public final class IdMappings {
      * Key: Post ID
      * Value: Pages of posts
      */
-    private final TreeMap<Integer, List<Post>> postQueue = new TreeMap<>();
+    private final TreeMap<Integer, QueuedPage> postQueue = new TreeMap<>();
+    
+    private final Journal journal;
+    
+    /**
+     * Creates an {@code IdMappings} without any mappings.
+     */
+    public IdMappings() {
+        this(null);
+    }
+    
+    /**
+     * Creates an {@code IdMappings} without any mappings.
+     * @param journal A {@link Journal} to record mappings and submitted queued
+     * posts in, or {@code null}.
+     */
+    public IdMappings(Journal journal) {
+        this.journal = journal;
+    }
     
     /**
      * Attempts to get the topic ID of a page of posts. This will only work if a
@@ -38,9 +57,10 @@ public final class IdMappings {
      * the posts to the database. If any other value is returned, it will not.
      * 
      * @param posts All posts in a page, preferably in their original order.
+     * @param source The name of the file containing the page.
      * @return The topic ID, or {@code null} if it could not be found.
      */
-    public Integer getTopicId(List<Post> posts) {
+    public Integer getTopicId(List<Post> posts, String source) {
         synchronized (postTopicMap) {
             // Loops backwards since the post we're looking for probably is last
             for (int i = posts.size() - 1; i >= 0; i--) {
@@ -50,8 +70,29 @@ public final class IdMappings {
                 }
             }
             // If this is reached, the ID wasn't found. The posts will be queued
+            QueuedPage page = new QueuedPage(posts, source);
             for (Post post : posts) {
-                postQueue.put(post.getId(), posts);
+                postQueue.put(post.getId(), page);
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Attempts to get the topic ID of a page of posts from the post IDs only.
+     * Unlike {@link #getTopicId(List, String) getTopicId}, nothing is queued
+     * if the topic ID can't be found.
+     * @param postIds The IDs of all posts in a page, preferably in their
+     * original order.
+     * @return The topic ID, or {@code null} if it could not be found.
+     */
+    public Integer findTopicId(List<Integer> postIds) {
+        synchronized (postTopicMap) {
+            for (int i = postIds.size() - 1; i >= 0; i--) {
+                Integer possibleId = postTopicMap.get(postIds.get(i));
+                if (possibleId != null) {
+                    return possibleId;
+                }
             }
             return null;
         }
@@ -63,35 +104,54 @@ public final class IdMappings {
      * replaced. If there are queued posts matching this topic, they will be
      * sent to the database synchronously when this method is called.
      * @param topic The topic to get the topic ID and last post ID from.
-     * @param database A {@link Database} that data can be sent to.
+     * @param database A {@link RecordSink} that data can be sent to.
      * @param ui A {@link UserInterface} for error display, or {@code null}.
      */
-    public void setTopicId(Topic topic, Database database, UserInterface ui) {
-        List<Post> queuedPosts;
+    public void setTopicId(Topic topic, RecordSink database, UserInterface ui) {
+        QueuedPage queuedPage;
         synchronized (postTopicMap) {
             postTopicMap.put(topic.getLastPostId(), topic.getId());
             
             // Check if there any queued posts match, and prepare for submitting
-            queuedPosts = postQueue.get(topic.getLastPostId());
-            if (queuedPosts != null) {
-                for (Post post : queuedPosts) {
+            queuedPage = postQueue.get(topic.getLastPostId());
+            if (queuedPage != null) {
+                for (Post post : queuedPage.posts) {
                     postQueue.remove(post.getId());
                 }
             }
         }
+        if (journal != null) {
+            journal.addMapping(topic.getLastPostId(), topic.getId());
+        }
         
         // Submit matching queued posts if there are any
         // This is done outside the synchronized block so that other threads can
         // use the postTopicMap while this thread only is using the database
-        if (queuedPosts != null) {
-            for (Post post : queuedPosts) {
-                try {
-                    database.insert(post, topic.getId());
-                } catch (SQLException e) {
-                    System.err.println("SQL error when submitting queued post "+
-                            post.getId() + ": " + e.getLocalizedMessage());
-                }
-            }
+        if (queuedPage != null) {
+            submit(queuedPage, topic.getId(), database);
+        }
+    }
+    
+    /**
+     * Adds a mapping between a topic ID and the ID of a topic's last post
+     * without checking for queued posts or recording it in the journal.
+     * Intended for restoring mappings from an earlier run.
+     * @param lastPostId The ID of the last post in the topic.
+     * @param topicId The ID of the topic.
+     */
+    public void putMapping(int lastPostId, int topicId) {
+        synchronized (postTopicMap) {
+            postTopicMap.put(lastPostId, topicId);
+        }
+    }
+    
+    /**
+     * @return the number of posts that are queued because their topic ID
+     * hasn't been found yet
+     */
+    public int getQueuedPostCount() {
+        synchronized (postTopicMap) {
+            return postQueue.size();
         }
     }
     
@@ -101,23 +161,59 @@ public final class IdMappings {
      * Submits all queued posts to a database. Intended to be used before
      * exiting to submit posts that couldn't be associated with a topic.
      * @param topicId The topic ID associate the posts with.
-     * @param database A {@link Database} that data can be sent to.
+     * @param database A {@link RecordSink} that data can be sent to.
      */
-    public void submitAllQueuedPosts(int topicId, Database database) {
+    public void submitAllQueuedPosts(int topicId, RecordSink database) {
         synchronized (postTopicMap) {
             while (!postQueue.isEmpty()) {
-                for (Post post : postQueue.firstEntry().getValue()) {
+                QueuedPage queuedPage = postQueue.firstEntry().getValue();
+                for (Post post : queuedPage.posts) {
                     postQueue.remove(post.getId());
-                    try {
-                        database.insert(post, topicId);
-                    } catch (SQLException e) {
-                        System.err.println("SQL error when submitting queued " +
-                                           "post " + post.getId() + ": " +
-                                           e.getLocalizedMessage());
-                    }
+                }
+                submit(queuedPage, topicId, database);
+            }
+        }
+    }
+    
+    /**
+     * Sends a page of queued posts to a database.
+     * @param queuedPage The page to send.
+     * @param topicId The topic ID to associate the posts with.
+     * @param database A {@link RecordSink} that data can be sent to.
+     */
+    private void submit(final QueuedPage queuedPage, int topicId,
+                        RecordSink database) {
+        // Only record the page as resolved once its posts have been written
+        WriteTracker writes = new WriteTracker() {
+            @Override void finished(ArrayList<String> errors) {
+                for (String error : errors) {
+                    System.err.println(error + " (queued from " +
+                                       queuedPage.source + ")");
+                }
+                if (journal != null) {
+                    journal.addResolved(queuedPage.source);
                 }
             }
+        };
+        for (Post post : queuedPage.posts) {
+            database.insert(post, topicId, writes.add());
         }
+        writes.parsed(Collections.<String>emptyList());
+    }
+    
+    /**
+     * A page of posts that is waiting for its topic ID.
+     */
+    private static final class QueuedPage {
+        
+        private final List<Post> posts;
+        private final String source;
+        
+        private QueuedPage(List<Post> posts, String source) {
+            this.posts = posts;
+            this.source = source;
+        }
+        
     }
     
 }
@@ -0,0 +1,28 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.util.Collection;
+
+/**
+ * Reports the parts of a page that can't be turned into records. Records are
+ * created by factory methods that add an error and return {@code null}
+ * instead of throwing an exception, since mirrors can have many broken rows
+ * and posts, and building a stack trace for each of them is slow.
+ * @author JosJuice
+ */
+final class InputErrors {
+
+    private InputErrors() {}
+
+    /**
+     * Adds an error about input data that can't be parsed.
+     * @param <T> the type of record that couldn't be created
+     * @param errors the list to add the error to
+     * @param message a description of the error
+     * @return {@code null}, so that a factory method can return the result
+     */
+    static <T> T add(Collection<String> errors, String message) {
+        errors.add("Error in input data: " + message);
+        return null;
+    }
+
+}
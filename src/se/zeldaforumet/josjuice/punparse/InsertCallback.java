@@ -0,0 +1,25 @@
+package se.zeldaforumet.josjuice.punparse;
+
+/**
+ * Is told what happened to a record that was given to a {@link RecordSink}.
+ * Records may be written long after they were inserted and by another thread,
+ * for instance when a batch is full, so errors can't be thrown to the code
+ * that inserted the record. Exactly one of the methods is called for each
+ * record, possibly before the insert method has returned. Implementations
+ * must be thread safe.
+ * @author JosJuice
+ */
+public interface InsertCallback {
+
+    /**
+     * Called when the record has been written to the database.
+     */
+    void inserted();
+
+    /**
+     * Called when the record couldn't be written to the database.
+     * @param error a description of the error
+     */
+    void failed(String error);
+
+}
@@ -0,0 +1,204 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Records which files have been parsed, so that a run that was interrupted can
+ * be resumed without parsing everything again. The journal is a text file that
+ * only is appended to. Each line is one of:
+ * <ul>
+ * <li>{@code F errors size mtime hash queued name}: a file has been parsed.
+ * {@code queued} is 1 if some of its posts were queued in {@link IdMappings}
+ * because their topic ID wasn't known.</li>
+ * <li>{@code R name}: the queued posts of a file have been submitted.</li>
+ * <li>{@code M lastPostId topicId}: a mapping was added to {@link IdMappings}.
+ * </li>
+ * </ul>
+ * Fields are separated by tabs. Thread safe.
+ * @author JosJuice
+ */
+public final class Journal implements AutoCloseable {
+
+    private final Writer writer;
+
+    /*
+     * Files that were parsed in an earlier run.
+     * Key: File name
+     * Value: What was recorded about the file
+     */
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    // Mappings that were recorded in an earlier run, as lastPostId, topicId
+    private final ArrayList<int[]> mappings = new ArrayList<>();
+
+    /**
+     * Opens a journal.
+     * @param file the file to store the journal in
+     * @param resume If {@code true}, the existing contents of the journal are
+     * loaded and kept. If {@code false}, the journal is emptied.
+     * @throws IOException if the journal can't be read or opened for writing
+     */
+    public Journal(File file, boolean resume) throws IOException {
+        if (resume && file.exists()) {
+            load(file);
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, resume), StandardCharsets.UTF_8));
+    }
+
+    @Override public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Adds the mappings that were recorded in an earlier run to an
+     * {@link IdMappings}.
+     * @param idMappings the object to add the mappings to
+     */
+    public void restoreMappings(IdMappings idMappings) {
+        for (int[] mapping : mappings) {
+            idMappings.putMapping(mapping[0], mapping[1]);
+        }
+    }
+
+    /**
+     * Checks whether a file was completely handled in an earlier run. Files
+     * whose posts still were queued when the earlier run stopped are not
+     * considered done, so that parsing them again restores the queue.
+     * @param name the name of the file
+     * @param size the size of the file in bytes
+     * @param modified the time the file was last modified, or 0 if unknown
+     * @param hash the {@link ContentHash} of the file, or 0 if unknown
+     * @return {@code true} if the file can be skipped
+     */
+    public boolean isDone(String name, long size, long modified, long hash) {
+        // entries is only modified by the constructor, so no locking is needed
+        Entry entry = entries.get(name);
+        return entry != null && !entry.isQueued && entry.size == size &&
+               (modified == 0 || entry.modified == modified) &&
+               (hash == 0 || entry.hash == hash);
+    }
+
+    /**
+     * Records that a file has been parsed.
+     * @param name the name of the file
+     * @param size the size of the file in bytes
+     * @param modified the time the file was last modified, or 0 if unknown
+     * @param hash the {@link ContentHash} of the file
+     * @param errors the number of errors that occurred when parsing
+     * @param isQueued {@code true} if posts from the file were queued in
+     * {@link IdMappings} and haven't been submitted yet
+     */
+    public void addFile(String name, long size, long modified, long hash,
+                        int errors, boolean isQueued) {
+        write("F\t" + errors + "\t" + size + "\t" + modified + "\t" +
+              Long.toHexString(hash) + "\t" + (isQueued ? 1 : 0) + "\t" +
+              name);
+    }
+
+    /**
+     * Records that the queued posts of a file have been submitted.
+     * @param name the name of the file
+     */
+    public void addResolved(String name) {
+        write("R\t" + name);
+    }
+
+    /**
+     * Records a mapping between the ID of a topic's last post and a topic ID.
+     * @param lastPostId the ID of the last post in the topic
+     * @param topicId the ID of the topic
+     */
+    public void addMapping(int lastPostId, int topicId) {
+        write("M\t" + lastPostId + "\t" + topicId);
+    }
+
+    /**
+     * Writes a line to the journal. Each line is flushed right away so that
+     * as little as possible is lost if the program crashes.
+     * @param line the line to write, without a line break
+     */
+    private synchronized void write(String line) {
+        try {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Couldn't write to journal: " +
+                               e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Loads the contents of an existing journal. Lines that can't be parsed,
+     * for instance a last line that was cut off by a crash, are ignored.
+     * @param file the journal
+     * @throws IOException if the journal can't be read
+     */
+    private void load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 7);
+                try {
+                    switch (fields[0]) {
+                        case "F":
+                            entries.put(fields[6], new Entry(
+                                    Long.parseLong(fields[2]),
+                                    Long.parseLong(fields[3]),
+                                    new BigInteger(fields[4], 16).longValue(),
+                                    fields[5].equals("1")));
+                            break;
+                        case "R":
+                            Entry entry = entries.get(fields[1]);
+                            if (entry != null && entry.isQueued) {
+                                entries.put(fields[1], new Entry(entry.size,
+                                        entry.modified, entry.hash, false));
+                            }
+                            break;
+                        case "M":
+                            mappings.add(new int[] {
+                                    Integer.parseInt(fields[1]),
+                                    Integer.parseInt(fields[2])});
+                            break;
+                    }
+                } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                    // Ignore broken lines
+                }
+            }
+        }
+    }
+
+    /**
+     * A file that was recorded in the journal.
+     */
+    private static final class Entry {
+
+        private final long size;
+        private final long modified;
+        private final long hash;
+        private final boolean isQueued;
+
+        private Entry(long size, long modified, long hash, boolean isQueued) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.isQueued = isQueued;
+        }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads HTML files into memory and decodes them. Each thread gets its own
+ * buffers, which are reused for every file that thread reads, and large files
+ * are memory-mapped instead of being copied. Every file is decoded using the
+ * same charset, which either is set by the user or detected from the first
+ * file that is read. Thread safe.
+ * @author JosJuice
+ */
+public final class PageReader {
+
+    /** Files larger than this are memory-mapped instead of being copied. */
+    private static final int MAP_THRESHOLD = 16 * 1024 * 1024;
+    /** The size of the buffers that are allocated for each thread at first. */
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    /** How many bytes at the start of a file to look for a charset in. */
+    private static final int DETECTION_LENGTH = 4096;
+    /** What a byte order mark is decoded to, whatever the charset is. */
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final AtomicReference<Charset> charset;
+
+    private final ThreadLocal<ByteBuffer> byteBuffers =
+            new ThreadLocal<ByteBuffer>() {
+        @Override protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+    };
+    private final ThreadLocal<CharBuffer> charBuffers =
+            new ThreadLocal<CharBuffer>() {
+        @Override protected CharBuffer initialValue() {
+            return CharBuffer.allocate(INITIAL_CAPACITY);
+        }
+    };
+    private final ThreadLocal<CharsetDecoder> decoders =
+            new ThreadLocal<CharsetDecoder>() {
+        @Override protected CharsetDecoder initialValue() {
+            return charset.get().newDecoder().
+                   onMalformedInput(CodingErrorAction.REPLACE).
+                   onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    /**
+     * Creates a {@code PageReader}.
+     * @param charsetName The name of the charset to decode files with, or
+     * {@code null} to detect it from the first file that is read.
+     * @throws IllegalArgumentException if the charset isn't supported
+     */
+    public PageReader(String charsetName) throws IllegalArgumentException {
+        if (charsetName == null) {
+            charset = new AtomicReference<>();
+        } else {
+            try {
+                charset = new AtomicReference<>(Charset.forName(charsetName));
+            } catch (IllegalCharsetNameException |
+                     UnsupportedCharsetException e) {
+                throw new IllegalArgumentException("Unsupported charset: " +
+                                                   charsetName, e);
+            }
+        }
+    }
+
+    /**
+     * Reads a whole file into memory. The returned buffer belongs to the
+     * calling thread and is reused the next time this thread calls this
+     * method, so it must not be kept after that.
+     * @param file the file to read
+     * @return a buffer positioned at the start of the file's contents
+     * @throws IOException if the file can't be read
+     */
+    public ByteBuffer read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteBuffer buffer = byteBuffers.get();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(
+                        Integer.highestOneBit((int) size - 1) << 1);
+                byteBuffers.set(buffer);
+            }
+            buffer.clear();
+            // The file may grow while reading, but the buffer won't
+            buffer.limit((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Decodes the contents of a file. If no charset has been set, it will be
+     * detected from these contents and used for all following calls. A byte
+     * order mark at the start isn't included in the result, just like when
+     * jsoup decodes a file itself.
+     * @param bytes the contents of a file, for instance from {@link #read}
+     * @return the decoded contents
+     */
+    public String decode(ByteBuffer bytes) {
+        detectCharset(bytes);
+        CharsetDecoder decoder = decoders.get();
+        int capacity = (int) (bytes.remaining() * decoder.maxCharsPerByte());
+        CharBuffer chars = charBuffers.get();
+        if (chars.capacity() < capacity) {
+            chars = CharBuffer.allocate(capacity);
+            // Don't hold on to huge buffers that only memory-mapped files need
+            if (capacity <= MAP_THRESHOLD) {
+                charBuffers.set(chars);
+            }
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        int start = chars.position() > 0 && chars.get(0) == BYTE_ORDER_MARK ?
+                    1 : 0;
+        return new String(chars.array(), start, chars.position() - start);
+    }
+
+    /**
+     * Detects the charset from the contents of a file if no charset has been
+     * set, like {@link #decode} does. This must be called with the whole file
+     * before only parts of it are decoded.
+     * @param bytes the contents of a file (the position isn't changed)
+     * @return the charset used for decoding
+     */
+    public Charset detectCharset(ByteBuffer bytes) {
+        if (charset.get() == null) {
+            charset.compareAndSet(null, detect(bytes));
+        }
+        return charset.get();
+    }
+
+    /**
+     * @return the charset used for decoding, or {@code null} if it hasn't
+     * been detected yet
+     */
+    public Charset getCharset() {
+        return charset.get();
+    }
+
+    /**
+     * Detects the charset of an HTML document by looking for a byte order mark
+     * or a {@code charset=} declaration near the start of the document.
+     * @param bytes the document (the position of the buffer isn't changed)
+     * @return the detected charset, or UTF-8 if none could be detected
+     */
+    private static Charset detect(ByteBuffer bytes) {
+        int start = bytes.position();
+        int end = start + Math.min(bytes.remaining(), DETECTION_LENGTH);
+
+        if (end - start >= 3 && (bytes.get(start) & 0xFF) == 0xEF &&
+            (bytes.get(start + 1) & 0xFF) == 0xBB &&
+            (bytes.get(start + 2) & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+
+        // All charset declarations are ASCII, so each byte can be a char
+        StringBuilder head = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            head.append(Character.toLowerCase((char) (bytes.get(i) & 0xFF)));
+        }
+        int index = head.indexOf("charset=");
+        if (index != -1) {
+            int nameStart = index + 8;
+            while (nameStart < head.length() &&
+                   (head.charAt(nameStart) == '"' ||
+                    head.charAt(nameStart) == '\'')) {
+                nameStart++;
+            }
+            int nameEnd = nameStart;
+            while (nameEnd < head.length() &&
+                   "\"'>;/ \t\r\n".indexOf(head.charAt(nameEnd)) == -1) {
+                nameEnd++;
+            }
+            try {
+                return Charset.forName(head.substring(nameStart, nameEnd));
+            } catch (IllegalArgumentException e) {
+                // Unknown or invalid charset names are treated as no charset
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+}
@@ -0,0 +1,695 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.jsoup.Jsoup;
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+
+/**
+ * Extracts the records of viewtopic and viewforum pages straight from their
+ * raw bytes, without building a DOM of the whole page. PunBB's output is
+ * regular enough that the fields can be found by looking for the exact markup
+ * that PunBB writes. Only post messages and signatures, which can contain any
+ * markup, are parsed with jsoup, one at a time. If anything on a page doesn't
+ * look like expected, {@code null} is returned so that the page can be parsed
+ * with jsoup instead. Only charsets that encode ASCII characters as single
+ * bytes are supported. Thread safe.
+ * @author JosJuice
+ */
+public final class PageScanner {
+
+    private static final byte[] ASCII = PageType.ascii("<>\"=/ adhiprstv");
+
+    private static final byte[] A = PageType.ascii("<a ");
+    private static final byte[] A_END = PageType.ascii("</a>");
+    private static final byte[] DT = PageType.ascii("<dt>");
+    private static final byte[] DT_END = PageType.ascii("</dt>");
+    private static final byte[] DIV = PageType.ascii("<div");
+    private static final byte[] DIV_END = PageType.ascii("</div>");
+    private static final byte[] TR = PageType.ascii("<tr");
+    private static final byte[] TR_END = PageType.ascii("</tr>");
+    private static final byte[] HREF = PageType.ascii("href=\"");
+    private static final byte[] CLASS = PageType.ascii("class=\"");
+    private static final byte[] PAGELINK = PageType.ascii("class=\"pagelink");
+    private static final byte[] USERTITLE =
+            PageType.ascii("class=\"usertitle\"");
+    private static final byte[] POSTAVATAR =
+            PageType.ascii("class=\"postavatar\"");
+    private static final byte[] POSTMSG =
+            PageType.ascii("<div class=\"postmsg\">");
+    private static final byte[] POSTSIGNATURE =
+            PageType.ascii("<div class=\"postsignature\">");
+    private static final byte[] TCLCON = PageType.ascii("tclcon");
+    private static final byte[] DIV_TCLCON =
+            PageType.ascii("<div class=\"tclcon\">");
+    private static final byte[] TD_TC2 = PageType.ascii("<td class=\"tc2\">");
+    private static final byte[] TD_TC3 = PageType.ascii("<td class=\"tc3\">");
+    private static final byte[] TD_TCR = PageType.ascii("<td class=\"tcr\">");
+    private static final byte[] TD_END = PageType.ascii("</td>");
+    private static final byte[] BYUSER = PageType.ascii("class=\"byuser\"");
+
+    private final PageReader pageReader;
+    private final DateParser dateParser;
+    private final boolean isVerifying;
+
+    /**
+     * Creates a {@code PageScanner}.
+     * @param pageReader A {@link PageReader} for decoding text.
+     * @param dateParser A {@link DateParser} for parsing dates.
+     * @param isVerifying {@code true} if pages should be parsed with jsoup
+     * too and the records compared. See {@link #isVerifying()}.
+     */
+    public PageScanner(PageReader pageReader, DateParser dateParser,
+                       boolean isVerifying) {
+        this.pageReader = pageReader;
+        this.dateParser = dateParser;
+        this.isVerifying = isVerifying;
+    }
+
+    /**
+     * @return {@code true} if every scanned page also should be parsed with
+     * jsoup, storing the records from jsoup and reporting any records that
+     * differ between the two
+     */
+    public boolean isVerifying() {
+        return isVerifying;
+    }
+
+    /**
+     * Scans a viewtopic page. Users are only added to the {@link UserCache}
+     * if the whole page could be scanned.
+     * @param bytes the raw bytes of the page (the position isn't changed)
+     * @param baseUri the URI to resolve links in messages against
+     * @param userCache A {@link UserCache} that the posters are added to, or
+     * {@code null}. See {@link PostUser#isKnown()}.
+     * @return the contents of the page, or {@code null} if the page must be
+     * parsed with jsoup instead
+     */
+    public Viewtopic scanViewtopic(ByteBuffer bytes, String baseUri,
+                                   UserCache userCache) {
+        if (!isSupported(bytes)) {
+            return null;
+        }
+        try {
+            Integer topicId = findContainerId(bytes);
+            ArrayList<Integer> starts = PostSplitter.findPosts(bytes);
+            ArrayList<ScannedPost> scanned = new ArrayList<>(starts.size());
+            HashSet<Integer> usersWithSignatures = new HashSet<>();
+            for (int start : starts) {
+                scanned.add(scanPost(bytes, start, baseUri, userCache,
+                                     usersWithSignatures));
+            }
+            // Nothing can fail after this, so the cache can be updated
+            ArrayList<Post> posts = new ArrayList<>(scanned.size());
+            for (ScannedPost post : scanned) {
+                posts.add(post.toPost(userCache));
+            }
+            return new Viewtopic(topicId, posts);
+        } catch (UnexpectedMarkupException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Scans a viewforum page.
+     * @param bytes the raw bytes of the page (the position isn't changed)
+     * @return the contents of the page, or {@code null} if the page must be
+     * parsed with jsoup instead
+     */
+    public Viewforum scanViewforum(ByteBuffer bytes) {
+        if (!isSupported(bytes)) {
+            return null;
+        }
+        try {
+            Integer forumId = findContainerId(bytes);
+            if (forumId == null) {
+                return null;
+            }
+            ArrayList<Topic> topics = new ArrayList<>();
+            int row = indexOfTag(bytes, TR, bytes.position(), bytes.limit());
+            while (row != -1) {
+                int rowEnd = find(bytes, TR_END, row, bytes.limit());
+                // Skip the top row, which only contains headings
+                if (PageType.indexOf(bytes, TCLCON, row, rowEnd) != -1) {
+                    topics.add(scanTopic(bytes, row, rowEnd, forumId));
+                }
+                row = indexOfTag(bytes, TR, rowEnd, bytes.limit());
+            }
+            return new Viewforum(forumId, topics);
+        } catch (UnexpectedMarkupException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Scans a {@code .blockpost} element.
+     * @param bytes the raw bytes of the page
+     * @param start the index of the post's start tag
+     * @param baseUri the URI to resolve links in the message against
+     * @param userCache A {@link UserCache} to check whether the signature
+     * is needed, or {@code null}. It isn't changed.
+     * @param usersWithSignatures the users whose signatures already have been
+     * parsed on this page, which only is used with a {@link UserCache}
+     * @return the fields of the post
+     */
+    private ScannedPost scanPost(ByteBuffer bytes, int start, String baseUri,
+                                 UserCache userCache,
+                                 HashSet<Integer> usersWithSignatures) {
+        int end = findElementEnd(bytes, start);
+        ScannedPost post = new ScannedPost();
+        post.id = PostSplitter.getPostId(bytes, start);
+        if (post.id == -1) {
+            throw new UnexpectedMarkupException();
+        }
+
+        // The first link in a post is the date
+        int dateLink = find(bytes, A, start, end);
+        int dateStart = findTagEnd(bytes, dateLink);
+        post.posted = date(
+                text(bytes, dateStart, find(bytes, A_END, dateStart, end)));
+
+        // Username and user ID
+        int dt = find(bytes, DT, start, end) + DT.length;
+        int dtEnd = find(bytes, DT_END, dt, end);
+        post.username = text(bytes, dt, dtEnd);
+        int posterLink = PageType.indexOf(bytes, A, dt, dtEnd);
+        if (posterLink == -1) {
+            post.userId = 1;    // The ID 1 is used by all guests
+        } else {
+            post.userId = number(TextParser.getQueryValue(
+                    href(bytes, posterLink), "id"));
+        }
+
+        int usertitle = find(bytes, USERTITLE, start, end);
+        post.title = elementText(bytes, usertitle, end);
+        post.hasAvatar = PageType.indexOf(bytes, POSTAVATAR, start, end) != -1;
+
+        // Message and signature
+        int postmsg = find(bytes, POSTMSG, start, end);
+        int postmsgEnd = findElementEnd(bytes, postmsg);
+        Element message = parseElement(bytes, postmsg, postmsgEnd, baseUri);
+        TextParser.Message parsed = TextParser.parsePostMessage(message);
+        post.message = parsed.getText();
+        post.hideSmilies = !parsed.hasSmilies();
+        // The signature is only parsed if the user hasn't been seen, but it
+        // must be parsed here, since parsing it can fail
+        if (userCache == null || (!userCache.contains(post.userId) &&
+                                  usersWithSignatures.add(post.userId))) {
+            post.signatureParsed = true;
+            int signature = PageType.indexOf(bytes, POSTSIGNATURE, postmsgEnd,
+                                             end);
+            if (signature != -1) {
+                post.signature = TextParser.parseMessage(parseElement(bytes,
+                        signature, findElementEnd(bytes, signature), baseUri));
+            }
+        }
+        return post;
+    }
+
+    /**
+     * Scans a topic row of a viewforum page.
+     * @param bytes the raw bytes of the page
+     * @param start the index of the row's start tag
+     * @param end the index after the row's end tag
+     * @param forumId the ID of the forum that contains the topic
+     * @return the topic
+     */
+    private Topic scanTopic(ByteBuffer bytes, int start, int end,
+                            int forumId) {
+        String rowClass = attribute(bytes, start, CLASS);
+        boolean closed = hasClass(rowClass, "iclosed");
+        boolean sticky = hasClass(rowClass, "isticky");
+
+        // Topic ID, subject and poster
+        int tclcon = find(bytes, DIV_TCLCON, start, end);
+        int tclconEnd = findElementEnd(bytes, tclcon);
+        int topicLink = find(bytes, A, tclcon, tclconEnd);
+        int subjectStart = findTagEnd(bytes, topicLink);
+        String subject = text(bytes, subjectStart,
+                              find(bytes, A_END, subjectStart, tclconEnd));
+        int id = number(TextParser.getQueryValue(
+                href(bytes, topicLink), "id"));
+        String poster = Topic.getPoster(elementText(bytes,
+                find(bytes, BYUSER, tclcon, tclconEnd), tclconEnd), "\u00A0");
+
+        // If .tc2 is empty, this is a moved topic
+        String replies = elementText(bytes, find(bytes, TD_TC2, start, end),
+                                     end);
+        if (replies.isEmpty() || replies.equals("\u00A0")) {
+            return new Topic(id, subject, poster, closed, sticky, true, 0, 0,
+                             0, 0, null, forumId);
+        }
+        int numReplies = number(replies);
+        int numViews = number(elementText(bytes,
+                find(bytes, TD_TC3, start, end), end));
+
+        // Last post
+        int tcr = find(bytes, TD_TCR, start, end);
+        int tcrEnd = find(bytes, TD_END, tcr, end);
+        int postLink = find(bytes, A, tcr, tcrEnd);
+        int dateStart = findTagEnd(bytes, postLink);
+        long lastPosted = date(
+                text(bytes, dateStart, find(bytes, A_END, dateStart, tcrEnd)));
+        int lastPostId = number(TextParser.getQueryValue(
+                href(bytes, postLink), "pid"));
+        String lastPoster = Topic.getPoster(elementText(bytes,
+                find(bytes, BYUSER, tcr, tcrEnd), tcrEnd), "\u00A0");
+
+        return new Topic(id, subject, poster, closed, sticky, false,
+                         numReplies, numViews, lastPostId, lastPosted,
+                         lastPoster, forumId);
+    }
+
+    /**
+     * Finds the ID of a topic or forum from the first link of the first
+     * {@code .pagelink} element, like {@link ParseTask} does.
+     * @param bytes the raw bytes of a page
+     * @return the ID, or {@code null} if there is no link to get it from
+     */
+    private Integer findContainerId(ByteBuffer bytes) {
+        int pagelink = find(bytes, PAGELINK, bytes.position(), bytes.limit());
+        int tagStart = findTagStart(bytes, pagelink);
+        if (bytes.get(tagStart + 1) != 'p' || bytes.get(tagStart + 2) != ' ') {
+            throw new UnexpectedMarkupException();
+        }
+        int end = find(bytes, PageType.ascii("</p>"), pagelink, bytes.limit());
+        int link = PageType.indexOf(bytes, A, pagelink, end);
+        if (link == -1) {
+            return null;
+        }
+        String url = attribute(bytes, link, HREF);
+        int id = url == null ? TextParser.NOT_A_NUMBER
+                : TextParser.parseInt(TextParser.getQueryValue(url, "id"));
+        return id == TextParser.NOT_A_NUMBER ? null : id;
+    }
+
+    /**
+     * @param bytes the raw bytes of a page
+     * @return {@code true} if the charset of the page encodes ASCII characters
+     * as single bytes
+     */
+    private boolean isSupported(ByteBuffer bytes) {
+        Charset charset = pageReader.detectCharset(bytes);
+        return Arrays.equals(new String(ASCII, charset).getBytes(charset),
+                             ASCII) &&
+               new String(ASCII, charset).length() == ASCII.length;
+    }
+
+    /**
+     * Gets the text of an element that doesn't contain an element with the
+     * same tag name, for instance a {@code dd} or {@code td} element.
+     * @param bytes the raw bytes of a page
+     * @param index an index inside the start tag of the element
+     * @param limit the index to stop searching for the end tag at
+     * @return the text of the element, like {@link Element#text()}
+     */
+    private String elementText(ByteBuffer bytes, int index, int limit) {
+        int tagStart = findTagStart(bytes, index);
+        int nameEnd = tagStart + 1;
+        while (nameEnd < limit && isNameByte(bytes.get(nameEnd))) {
+            nameEnd++;
+        }
+        byte[] endTag = new byte[nameEnd - tagStart + 2];
+        endTag[0] = '<';
+        endTag[1] = '/';
+        for (int i = tagStart + 1; i < nameEnd; i++) {
+            endTag[i - tagStart + 1] = bytes.get(i);
+        }
+        endTag[endTag.length - 1] = '>';
+        int contentStart = findTagEnd(bytes, tagStart);
+        return text(bytes, contentStart,
+                    find(bytes, endTag, contentStart, limit));
+    }
+
+    /**
+     * Gets the text of a part of a page, like {@link Element#text()} would
+     * for an element containing that part. Tags are removed, entities are
+     * decoded and whitespace is normalized.
+     * @param bytes the raw bytes of a page
+     * @param start the index of the first byte of the part
+     * @param end the index after the last byte of the part
+     * @return the text
+     */
+    private String text(ByteBuffer bytes, int start, int end) {
+        String html = decode(bytes, start, end);
+        if (html.indexOf('<') == -1 && html.indexOf('&') == -1) {
+            return StringUtil.normaliseWhitespace(html).trim();
+        }
+        StringBuilder sb = new StringBuilder(html.length());
+        int i = 0;
+        while (i < html.length()) {
+            char c = html.charAt(i);
+            if (c != '<') {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            int tagEnd = html.indexOf('>', i);
+            if (tagEnd == -1) {
+                throw new UnexpectedMarkupException();
+            }
+            // Line breaks become spaces, and other tags disappear
+            if (html.regionMatches(true, i, "<br", 0, 3) &&
+                (html.charAt(i + 3) == ' ' || html.charAt(i + 3) == '/' ||
+                 html.charAt(i + 3) == '>')) {
+                sb.append(' ');
+            }
+            i = tagEnd + 1;
+        }
+        String text = Parser.unescapeEntities(sb.toString(), false);
+        return StringUtil.normaliseWhitespace(text).trim();
+    }
+
+    /**
+     * Gets the value of a double quoted attribute of a tag.
+     * @param bytes the raw bytes of a page
+     * @param tagStart the index of the {@code <} of the tag
+     * @param name the attribute name followed by {@code ="}
+     * @return the value with entities decoded, or {@code null} if the tag
+     * doesn't have the attribute
+     */
+    private String attribute(ByteBuffer bytes, int tagStart, byte[] name) {
+        int tagEnd = findTagEnd(bytes, tagStart);
+        int index = PageType.indexOf(bytes, name, tagStart, tagEnd);
+        if (index == -1) {
+            return null;
+        }
+        int valueStart = index + name.length;
+        int valueEnd = valueStart;
+        while (bytes.get(valueEnd) != '"') {
+            if (++valueEnd >= tagEnd) {
+                throw new UnexpectedMarkupException();
+            }
+        }
+        return Parser.unescapeEntities(decode(bytes, valueStart, valueEnd),
+                                       true);
+    }
+
+    /**
+     * Parses a number that must be valid.
+     * @param text the text to parse, or {@code null}
+     * @return the number
+     */
+    private static int number(String text) {
+        int number = TextParser.parseInt(text);
+        if (number == TextParser.NOT_A_NUMBER) {
+            throw new UnexpectedMarkupException();
+        }
+        return number;
+    }
+
+    /**
+     * Parses a date that must be valid.
+     * @param text the text to parse
+     * @return the date as a Unix timestamp
+     */
+    private long date(String text) {
+        long date = dateParser.tryParse(text);
+        if (date == DateParser.INVALID_DATE) {
+            throw new UnexpectedMarkupException();
+        }
+        return date;
+    }
+
+    /**
+     * Gets the URL of a link.
+     * @param bytes the raw bytes of a page
+     * @param tagStart the index of the {@code <} of an {@code a} tag
+     * @return the value of the {@code href} attribute
+     */
+    private String href(ByteBuffer bytes, int tagStart) {
+        String url = attribute(bytes, tagStart, HREF);
+        if (url == null) {
+            throw new UnexpectedMarkupException();
+        }
+        return url;
+    }
+
+    /**
+     * Parses a single element with jsoup.
+     * @param bytes the raw bytes of a page
+     * @param start the index of the element's start tag
+     * @param end the index after the element's end tag
+     * @param baseUri the URI to resolve links in the element against
+     * @return the element
+     */
+    private Element parseElement(ByteBuffer bytes, int start, int end,
+                                 String baseUri) {
+        Element body = Jsoup.parseBodyFragment(decode(bytes, start, end),
+                                               baseUri).body();
+        if (body.children().size() != 1) {
+            throw new UnexpectedMarkupException();
+        }
+        return body.child(0);
+    }
+
+    private String decode(ByteBuffer bytes, int start, int end) {
+        ByteBuffer part = bytes.duplicate();
+        part.position(start);
+        part.limit(end);
+        return pageReader.decode(part);
+    }
+
+    /**
+     * Finds the end of a {@code div} element by counting the {@code div}
+     * start and end tags inside it.
+     * @param bytes the raw bytes of a page
+     * @param start the index of the element's start tag
+     * @return the index after the element's end tag
+     */
+    private static int findElementEnd(ByteBuffer bytes, int start) {
+        if (indexOfTag(bytes, DIV, start, start + DIV.length + 1) != start) {
+            throw new UnexpectedMarkupException();
+        }
+        int depth = 0;
+        int i = start;
+        int limit = bytes.limit() - DIV_END.length;
+        while (i <= limit) {
+            if (bytes.get(i) == '<') {
+                if (matches(bytes, DIV_END, i)) {
+                    if (--depth == 0) {
+                        return i + DIV_END.length;
+                    }
+                    i += DIV_END.length;
+                    continue;
+                } else if (matches(bytes, DIV, i) &&
+                           isTagEnd(bytes.get(i + DIV.length))) {
+                    depth++;
+                }
+            }
+            i++;
+        }
+        throw new UnexpectedMarkupException();
+    }
+
+    /**
+     * Finds a start tag with a given name.
+     * @param bytes the raw bytes of a page
+     * @param tag {@code <} followed by the tag name
+     * @param start the index to start searching at
+     * @param end the index to stop searching at
+     * @return the index of the tag, or -1 if there is none
+     */
+    private static int indexOfTag(ByteBuffer bytes, byte[] tag, int start,
+                                  int end) {
+        int index = PageType.indexOf(bytes, tag, start, end);
+        while (index != -1 && (index + tag.length >= bytes.limit() ||
+                               !isTagEnd(bytes.get(index + tag.length)))) {
+            index = PageType.indexOf(bytes, tag, index + 1, end);
+        }
+        return index;
+    }
+
+    /**
+     * Like {@link PageType#indexOf}, but the pattern must be found.
+     */
+    private static int find(ByteBuffer bytes, byte[] pattern, int start,
+                            int end) {
+        int index = PageType.indexOf(bytes, pattern, start, end);
+        if (index == -1) {
+            throw new UnexpectedMarkupException();
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the {@code <} of the tag that {@code index} is in
+     */
+    private static int findTagStart(ByteBuffer bytes, int index) {
+        while (bytes.get(index) != '<') {
+            if (--index < bytes.position() || bytes.get(index) == '>') {
+                throw new UnexpectedMarkupException();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the index after the {@code >} of the tag that {@code index} is
+     * in
+     */
+    private static int findTagEnd(ByteBuffer bytes, int index) {
+        while (bytes.get(index) != '>') {
+            if (++index >= bytes.limit()) {
+                throw new UnexpectedMarkupException();
+            }
+        }
+        return index + 1;
+    }
+
+    private static boolean matches(ByteBuffer bytes, byte[] pattern,
+                                   int index) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (bytes.get(index + i) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTagEnd(byte b) {
+        return b == ' ' || b == '>' || b == '/' || b == '\t' || b == '\n' ||
+               b == '\r';
+    }
+
+    private static boolean isNameByte(byte b) {
+        return b >= 'a' && b <= 'z' || b >= '0' && b <= '9';
+    }
+
+    /**
+     * Checks for a class like {@link Element#hasClass(String)} does.
+     * @param classes the value of a class attribute, or {@code null}
+     * @param className the class to look for
+     * @return {@code true} if the class is in the attribute
+     */
+    private static boolean hasClass(String classes, String className) {
+        if (classes == null) {
+            return false;
+        }
+        for (String name : classes.trim().split("\\s+")) {
+            if (name.equalsIgnoreCase(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The records of a viewtopic page.
+     */
+    public static final class Viewtopic {
+
+        private final Integer topicId;
+        private final ArrayList<Post> posts;
+
+        private Viewtopic(Integer topicId, ArrayList<Post> posts) {
+            this.topicId = topicId;
+            this.posts = posts;
+        }
+
+        /**
+         * @return the topic ID from the page links, or {@code null} if there
+         * are no page links
+         */
+        public Integer getTopicId() {
+            return topicId;
+        }
+
+        /**
+         * @return the posts, in the order they are on the page
+         */
+        public ArrayList<Post> getPosts() {
+            return posts;
+        }
+
+    }
+
+    /**
+     * The records of a viewforum page.
+     */
+    public static final class Viewforum {
+
+        private final int forumId;
+        private final ArrayList<Topic> topics;
+
+        private Viewforum(int forumId, ArrayList<Topic> topics) {
+            this.forumId = forumId;
+            this.topics = topics;
+        }
+
+        /**
+         * @return the forum ID from the page links
+         */
+        public int getForumId() {
+            return forumId;
+        }
+
+        /**
+         * @return the topics, in the order they are on the page
+         */
+        public ArrayList<Topic> getTopics() {
+            return topics;
+        }
+
+    }
+
+    /**
+     * The fields of a post that has been scanned but not turned into a
+     * {@link Post} yet, since that adds the poster to the {@link UserCache}.
+     */
+    private final class ScannedPost {
+
+        private int id;
+        private long posted;
+        private int userId;
+        private String username;
+        private String title;
+        private boolean hasAvatar;
+        private String message;
+        private boolean hideSmilies;
+        // Whether signature has been parsed, since it is null without one
+        private boolean signatureParsed;
+        private String signature;
+
+        /**
+         * @param userCache A {@link UserCache} that the poster is added to,
+         * or {@code null}.
+         * @return the post
+         */
+        private Post toPost(UserCache userCache) {
+            boolean isKnown = userCache != null && !userCache.add(userId);
+            if (!isKnown && !signatureParsed) {
+                // The user was in the cache when the page was scanned, but
+                // sending it failed since then. Without the signature it can't
+                // be sent now, so let the next page that has it send it
+                userCache.remove(userId);
+                isKnown = true;
+            }
+            PostUser user = new PostUser(userId, username, title, hasAvatar,
+                                         isKnown ? null : signature, isKnown);
+            return new Post(id, user, message, hideSmilies, posted);
+        }
+
+    }
+
+    /**
+     * Thrown when a page doesn't look like expected. Never leaves this class.
+     */
+    private static final class UnexpectedMarkupException
+            extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private UnexpectedMarkupException() {
+            // Stack traces aren't needed, and filling them in is slow
+            super(null, null, false, false);
+        }
+
+    }
+
+}
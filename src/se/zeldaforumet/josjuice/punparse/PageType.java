@@ -0,0 +1,154 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The types of PunBB pages, identified by the ID of the {@code .pun} element.
+ * The types are declared in the order they should be parsed in.
+ * @author JosJuice
+ */
+public enum PageType {
+
+    /** {@code index.php}, containing categories and forums. */
+    INDEX,
+    /** {@code viewforum.php}, containing topics. */
+    VIEWFORUM,
+    /** {@code viewtopic.php} (or {@code viewpoll.php}), containing posts. */
+    VIEWTOPIC,
+    /** Any other page, which doesn't contain anything that can be parsed. */
+    OTHER;
+
+    /** How many bytes at the start of a page to look for the type in. */
+    private static final int SNIFF_LENGTH = 16 * 1024;
+
+    private static final byte[] CLASS_PUN = ascii("class=\"pun\"");
+    private static final byte[] ID = ascii("id=\"");
+
+    /**
+     * Gets the page type that a {@code .pun} element ID corresponds to.
+     * @param id the ID of a {@code .pun} element, for instance
+     * {@code punviewtopic}
+     * @return the page type ({@link #OTHER} if the ID is unknown)
+     */
+    public static PageType fromId(String id) {
+        switch (id) {
+            case "punviewpoll":
+            case "punviewtopic":
+                return VIEWTOPIC;
+            case "punviewforum":
+                return VIEWFORUM;
+            case "punindex":
+                return INDEX;
+            default:
+                return OTHER;
+        }
+    }
+
+    /**
+     * Guesses the type of a page from its file name or URL, for instance
+     * {@code viewtopic.php?id=5}. Only the last part of a path is used.
+     * @param name the name of the page
+     * @return the likely page type, or {@code null} if it can't be guessed
+     */
+    public static PageType guess(String name) {
+        int start = Math.max(name.lastIndexOf('/'), name.lastIndexOf(':')) + 1;
+        String fileName = name.substring(start).toLowerCase();
+        if (fileName.startsWith("viewtopic") ||
+            fileName.startsWith("viewpoll")) {
+            return VIEWTOPIC;
+        } else if (fileName.startsWith("viewforum")) {
+            return VIEWFORUM;
+        } else if (fileName.startsWith("index")) {
+            return INDEX;
+        } else if (fileName.startsWith("profile") ||
+                   fileName.startsWith("search") ||
+                   fileName.startsWith("userlist") ||
+                   fileName.startsWith("misc") ||
+                   fileName.startsWith("help") ||
+                   fileName.startsWith("login") ||
+                   fileName.startsWith("register") ||
+                   fileName.endsWith(".css") || fileName.endsWith(".js") ||
+                   fileName.endsWith(".png") || fileName.endsWith(".gif") ||
+                   fileName.endsWith(".jpg") || fileName.endsWith(".ico")) {
+            return OTHER;
+        }
+        return null;
+    }
+
+    /**
+     * Finds out the type of a page by looking at the raw bytes at the start of
+     * it, without building a DOM. The {@code .pun} element comes right after
+     * {@code <body>} in PunBB pages, so if it isn't found near the start of
+     * the page, the page isn't a PunBB page. (CSS files, images, etc.)
+     * @param bytes the raw bytes of a page (the position isn't changed)
+     * @return the type of the page
+     */
+    public static PageType sniff(ByteBuffer bytes) {
+        int start = bytes.position();
+        int end = start + Math.min(bytes.remaining(), SNIFF_LENGTH);
+
+        int classIndex = indexOf(bytes, CLASS_PUN, start, end);
+        while (classIndex != -1) {
+            // Find the start and end of the tag the class attribute is in
+            int tagStart = classIndex;
+            while (tagStart > start && bytes.get(tagStart) != '<') {
+                tagStart--;
+            }
+            int tagEnd = classIndex;
+            while (tagEnd < end && bytes.get(tagEnd) != '>') {
+                tagEnd++;
+            }
+
+            int idIndex = indexOf(bytes, ID, tagStart, tagEnd);
+            if (idIndex != -1) {
+                int idStart = idIndex + ID.length;
+                int idEnd = idStart;
+                while (idEnd < tagEnd && bytes.get(idEnd) != '"') {
+                    idEnd++;
+                }
+                StringBuilder id = new StringBuilder(idEnd - idStart);
+                for (int i = idStart; i < idEnd; i++) {
+                    id.append((char) (bytes.get(i) & 0xFF));
+                }
+                return fromId(id.toString());
+            }
+            classIndex = indexOf(bytes, CLASS_PUN, tagEnd, end);
+        }
+        return OTHER;
+    }
+
+    /**
+     * Finds the first occurrence of a byte sequence in a part of a buffer.
+     * @param bytes the buffer to search in
+     * @param pattern the bytes to search for
+     * @param start the index to start searching at
+     * @param end the index to stop searching at
+     * @return the index of the first occurrence, or -1 if there is none
+     */
+    static int indexOf(ByteBuffer bytes, byte[] pattern, int start, int end) {
+        int last = end - pattern.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param string a string containing only ASCII characters
+     * @return the string as bytes
+     */
+    static byte[] ascii(String string) {
+        byte[] result = new byte[string.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) string.charAt(i);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,321 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link ParseTask}s on a pool of threads as soon as files are submitted.
+ * Input that can be read more than once is read in two passes: the first pass
+ * only accepts index and viewforum pages, and the second pass, which starts
+ * once the first pass has been parsed, accepts everything else. This way topic
+ * IDs usually are known before the posts of a topic are parsed, and
+ * {@link IdMappings} doesn't have to queue them. Within a pass, waiting tasks
+ * are run in the order index pages, viewforum pages, viewtopic pages, other
+ * pages. Only a limited number of tasks can be waiting at the same time, so a
+ * fast producer of files will be slowed down instead of filling up the memory.
+ * Thread safe.
+ * @author JosJuice
+ */
+public final class ParseScheduler {
+
+    /** How many tasks that can be waiting for each thread. */
+    private static final int TASKS_PER_THREAD = 16;
+
+    /** Which pages that are accepted by the submit methods. */
+    private enum Pass {
+        /** Every page, for input that only can be read once. */
+        ALL,
+        /** Only index and viewforum pages. */
+        FIRST,
+        /** Every page except index and viewforum pages. */
+        SECOND
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int maxPendingTasks;
+    private final Semaphore pendingTasks;
+    private volatile Pass pass = Pass.ALL;
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong submittedBytes = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final RecordSink database;
+    private final UserInterface ui;
+    private final IdMappings idMappings;
+    private final DateParser dateParser;
+    private final PageReader pageReader;
+    private final DuplicateFilter duplicateFilter;
+    private final Journal journal;
+    private final UserCache userCache;
+    private final PageScanner scanner;
+
+    /**
+     * Creates a {@code ParseScheduler}.
+     * @param threads The number of threads to parse files with.
+     * @param database A {@link RecordSink} to send data to.
+     * @param ui A {@link UserInterface} for progress display, or {@code null}.
+     * @param idMappings Used when no page links are available for finding IDs.
+     * @param dateParser A {@link DateParser} for parsing dates.
+     * @param pageReader A {@link PageReader} for reading files.
+     * @param duplicateFilter A {@link DuplicateFilter} for skipping files that
+     * already have been parsed, or {@code null} to parse all files.
+     * @param journal A {@link Journal} for recording parsed files and skipping
+     * files that were parsed in an earlier run, or {@code null}.
+     * @param userCache A {@link UserCache} for skipping users that already
+     * have been sent to the database, or {@code null}.
+     * @param scanner A {@link PageScanner} for parsing viewtopic and viewforum
+     * pages without jsoup when possible, or {@code null} to always use jsoup.
+     */
+    public ParseScheduler(int threads, RecordSink database, UserInterface ui,
+                          IdMappings idMappings, DateParser dateParser,
+                          PageReader pageReader,
+                          DuplicateFilter duplicateFilter, Journal journal,
+                          UserCache userCache, PageScanner scanner) {
+        executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        maxPendingTasks = threads * TASKS_PER_THREAD;
+        pendingTasks = new Semaphore(maxPendingTasks);
+        this.database = database;
+        this.ui = ui;
+        this.idMappings = idMappings;
+        this.dateParser = dateParser;
+        this.pageReader = pageReader;
+        this.duplicateFilter = duplicateFilter;
+        this.journal = journal;
+        this.userCache = userCache;
+        this.scanner = scanner;
+    }
+
+    /**
+     * Starts the first pass. Until {@link #startSecondPass()} is called, only
+     * pages that are known to be index or viewforum pages are accepted, and
+     * all other pages are ignored. The same input must then be submitted again
+     * in the second pass. If this method never is called, all pages are
+     * accepted right away.
+     */
+    public void startFirstPass() {
+        pass = Pass.FIRST;
+    }
+
+    /**
+     * Waits until all tasks that have been submitted so far have finished,
+     * and then starts the second pass, which accepts all pages that weren't
+     * accepted in the first pass.
+     */
+    public void startSecondPass() {
+        pendingTasks.acquireUninterruptibly(maxPendingTasks);
+        pass = Pass.SECOND;
+        pendingTasks.release(maxPendingTasks);
+    }
+
+    /**
+     * @return {@code true} unless in the first pass, so that errors about
+     * input that is read in both passes only are displayed once
+     */
+    public boolean isLastPass() {
+        return pass != Pass.FIRST;
+    }
+
+    /**
+     * Checks whether a page will be ignored in the current pass, judging only
+     * by its name. Such pages don't have to be read before being submitted.
+     * @param name the name of the page
+     * @return {@code true} if the page won't be accepted
+     */
+    public boolean isSkipped(String name) {
+        PageType type = PageType.guess(name);
+        return type != null && !isInPass(type);
+    }
+
+    /**
+     * Schedules a file for parsing. If too many tasks already are waiting, this
+     * method blocks until one of them has finished. The goal of the
+     * {@link UserInterface} is increased by 1. Files that aren't accepted in
+     * the current pass and files that the journal says were parsed in an
+     * earlier run are skipped. Files whose names don't tell what type of page
+     * they are count as other pages until the task has read them.
+     * @param file the file to parse
+     */
+    public void submit(File file) {
+        submit(file, false);
+    }
+
+    /**
+     * Schedules a file that was found by watching a directory for parsing, in
+     * the same way as {@link #submit(File)}, except that it is accepted in
+     * every pass. Once the records of the file have been written, the time
+     * since it was last modified is reported to the {@link UserInterface} as
+     * its freshness latency.
+     * @param file the file to parse
+     */
+    public void submitWatched(File file) {
+        submit(file, true);
+    }
+
+    private void submit(File file, boolean isWatched) {
+        PageType type = PageType.guess(file.getName());
+        if (!isWatched && !isInPass(type)) {
+            return;
+        }
+        if (journal != null &&
+            journal.isDone(ParseTask.getJournalName(file), file.length(),
+                           file.lastModified(), 0)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        submittedBytes.addAndGet(file.length());
+        ParseTask task = new ParseTask(file, database, ui, idMappings,
+                                       dateParser, pageReader, duplicateFilter,
+                                       journal, userCache, scanner);
+        if (isWatched) {
+            task.setWatched();
+        }
+        execute(task, type != null ? type : PageType.OTHER);
+    }
+
+    /**
+     * Schedules a file that already is in memory for parsing. If too many
+     * tasks already are waiting, this method blocks until one of them has
+     * finished. The goal of the {@link UserInterface} is increased by 1. Files
+     * that aren't accepted in the current pass and files that the journal says
+     * were parsed in an earlier run are skipped.
+     * @param name a name for the file, used for progress and error display
+     * @param content the contents of the file
+     */
+    public void submit(String name, byte[] content) {
+        PageType type = PageType.guess(name);
+        if (type == null) {
+            type = PageType.sniff(ByteBuffer.wrap(content));
+        }
+        if (!isInPass(type)) {
+            return;
+        }
+        if (journal != null &&
+            journal.isDone(name, content.length, 0,
+                           ContentHash.hash(content))) {
+            skipped.incrementAndGet();
+            return;
+        }
+        submittedBytes.addAndGet(content.length);
+        execute(new ParseTask(name, content, database, ui, idMappings,
+                              dateParser, pageReader, duplicateFilter,
+                              journal, userCache, scanner), type);
+    }
+
+    /**
+     * Waits until all submitted tasks have finished. No more tasks can be
+     * submitted after this method has been called.
+     */
+    public void awaitCompletion() {
+        executor.shutdown();
+        boolean isDone = false;
+        while (!isDone) {
+            try {
+                isDone = executor.awaitTermination(1, TimeUnit.DAYS);
+            } catch (InterruptedException e) {}
+        }
+    }
+
+    /**
+     * @return the number of tasks that have been submitted so far
+     */
+    public int getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return the total size in bytes of the tasks that have been submitted so
+     * far
+     */
+    public long getSubmittedBytes() {
+        return submittedBytes.get();
+    }
+
+    /**
+     * @return the number of files that have been skipped so far because they
+     * were parsed in an earlier run
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @param type the type of a page, or {@code null} if it isn't known
+     * @return {@code true} if the page is accepted in the current pass
+     */
+    private boolean isInPass(PageType type) {
+        boolean isFirst = type == PageType.INDEX || type == PageType.VIEWFORUM;
+        switch (pass) {
+            case FIRST:
+                return isFirst;
+            case SECOND:
+                return !isFirst;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Runs a task on the thread pool once there is room for it.
+     * @param task the task to run
+     * @param type the type of the page the task parses, which decides the
+     * order tasks are run in
+     */
+    private void execute(Runnable task, PageType type) {
+        pendingTasks.acquireUninterruptibly();
+        submitted.incrementAndGet();
+        if (ui != null) {
+            ui.addToGoal(1);
+        }
+        executor.execute(new PrioritizedTask(task, type,
+                                             sequence.getAndIncrement()) {
+            @Override public void run() {
+                try {
+                    super.run();
+                } finally {
+                    pendingTasks.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * A task that is ordered by page type, and then by the order tasks were
+     * submitted in.
+     */
+    private static class PrioritizedTask
+            implements Runnable, Comparable<PrioritizedTask> {
+
+        private final Runnable task;
+        private final PageType type;
+        private final long sequence;
+
+        private PrioritizedTask(Runnable task, PageType type, long sequence) {
+            this.task = task;
+            this.type = type;
+            this.sequence = sequence;
+        }
+
+        @Override public void run() {
+            task.run();
+        }
+
+        @Override public int compareTo(PrioritizedTask other) {
+            int result = type.compareTo(other.type);
+            if (result == 0) {
+                result = Long.compare(sequence, other.sequence);
+            }
+            return result;
+        }
+
+    }
+
+}
@@ -2,8 +2,9 @@ package se.zeldaforumet.josjuice.punparse;
 
 import java.io.File;
 import java.io.IOException;
-import java.sql.SQLException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -15,46 +16,315 @@ import org.jsoup.select.Elements;
  */
 public final class ParseTask implements Runnable {
     
+    /** Viewtopic pages larger than this are parsed one post at a time. */
+    private static final int STREAM_THRESHOLD = 1024 * 1024;
+    /** Posts of pages larger than this are converted in parallel. */
+    private static final int PARALLEL_THRESHOLD = 256 * 1024;
+    /** How many posts of a streamed page that are kept in memory at once. */
+    private static final int STREAM_BATCH_SIZE = 256;
+    
+    private final String name;
     private final File file;
-    private final Database database;
+    private final byte[] content;
+    private final RecordSink database;
     private final UserInterface ui;
     private final IdMappings idMappings;
     private final DateParser dateParser;
+    private final PageReader pageReader;
+    private final DuplicateFilter duplicateFilter;
+    private final Journal journal;
+    private final UserCache userCache;
+    private final PageScanner scanner;
+    
+    // Set to true if posts were queued in idMappings while parsing
+    private boolean hasQueuedPosts = false;
+    // Set to true if the page is large enough to convert posts in parallel
+    private boolean isLarge = false;
+    // The records of the file that haven't been written yet
+    private WriteTracker writes;
+    // Set to true if the freshness latency should be displayed
+    private boolean isWatched = false;
     
     /**
      * Creates a {@code ParseThread}.
      * @param file The {@code File} that is to be parsed.
-     * @param database A {@link Database} to send data to.
+     * @param database A {@link RecordSink} to send data to.
      * @param ui A {@link UserInterface} for progress display, or {@code null}.
      * @param dateFormat A {@link DateFormat} for parsing dates.
      * @param idMappings Used when no page links are available for finding IDs.
+     * @param pageReader A {@link PageReader} for reading the file.
+     * @param duplicateFilter A {@link DuplicateFilter} for skipping files that
+     * already have been parsed, or {@code null} to parse all files.
+     * @param journal A {@link Journal} to record the file in when it has been
+     * parsed, or {@code null}.
+     * @param userCache A {@link UserCache} for skipping users that already
+     * have been sent to the database, or {@code null}.
+     * @param scanner A {@link PageScanner} for parsing viewtopic and viewforum
+     * pages without jsoup when possible, or {@code null} to always use jsoup.
      */
-    public ParseTask(File file, Database database, UserInterface ui,
-                     IdMappings idMappings, DateParser dateParser) {
+    public ParseTask(File file, RecordSink database, UserInterface ui,
+                     IdMappings idMappings, DateParser dateParser,
+                     PageReader pageReader, DuplicateFilter duplicateFilter,
+                     Journal journal, UserCache userCache,
+                     PageScanner scanner) {
+        this(file.getName(), file, null, database, ui, idMappings, dateParser,
+             pageReader, duplicateFilter, journal, userCache, scanner);
+    }
+    
+    /**
+     * Creates a {@code ParseThread} for a file that already is in memory, for
+     * instance an entry in an archive.
+     * @param name A name for the file, used for progress and error display.
+     * @param content The contents of the file that is to be parsed.
+     * @param database A {@link RecordSink} to send data to.
+     * @param ui A {@link UserInterface} for progress display, or {@code null}.
+     * @param dateFormat A {@link DateFormat} for parsing dates.
+     * @param idMappings Used when no page links are available for finding IDs.
+     * @param pageReader A {@link PageReader} for decoding the file.
+     * @param duplicateFilter A {@link DuplicateFilter} for skipping files that
+     * already have been parsed, or {@code null} to parse all files.
+     * @param journal A {@link Journal} to record the file in when it has been
+     * parsed, or {@code null}.
+     * @param userCache A {@link UserCache} for skipping users that already
+     * have been sent to the database, or {@code null}.
+     * @param scanner A {@link PageScanner} for parsing viewtopic and viewforum
+     * pages without jsoup when possible, or {@code null} to always use jsoup.
+     */
+    public ParseTask(String name, byte[] content, RecordSink database,
+                     UserInterface ui, IdMappings idMappings,
+                     DateParser dateParser, PageReader pageReader,
+                     DuplicateFilter duplicateFilter, Journal journal,
+                     UserCache userCache, PageScanner scanner) {
+        this(name, null, content, database, ui, idMappings, dateParser,
+             pageReader, duplicateFilter, journal, userCache, scanner);
+    }
+    
+    private ParseTask(String name, File file, byte[] content,
+                      RecordSink database, UserInterface ui,
+                      IdMappings idMappings, DateParser dateParser,
+                      PageReader pageReader, DuplicateFilter duplicateFilter,
+                      Journal journal, UserCache userCache,
+                      PageScanner scanner) {
+        this.name = name;
         this.file = file;
+        this.content = content;
         this.database = database;
         this.ui = ui;
         this.idMappings = idMappings;
         this.dateParser = dateParser;
+        this.pageReader = pageReader;
+        this.duplicateFilter = duplicateFilter;
+        this.journal = journal;
+        this.userCache = userCache;
+        this.scanner = scanner;
+    }
+    
+    /**
+     * Makes this task display the freshness latency of its file once the
+     * file's records have been written, for files found by watching a
+     * directory. Must be called before the task is run.
+     */
+    public void setWatched() {
+        isWatched = true;
     }
     
     /**
-     * Runs this task. Progress are displayed to the user using the
-     * {@link UserInterface}, and results are sent to the {@link Database}.
+     * Gets the name a file is recorded with in a {@link Journal}.
+     * @param file a file
+     * @return the absolute path of the file
+     */
+    public static String getJournalName(File file) {
+        return file.getAbsolutePath();
+    }
+    
+    /**
+     * Runs this task. Results are sent to the {@link RecordSink}. Once they
+     * all have been written, which may be after this method has returned,
+     * progress is displayed to the user using the {@link UserInterface} and
+     * the file is recorded in the {@link Journal}.
      */
     @Override public void run() {
         try {
-            ArrayList<String> errors = parseDocument(Jsoup.parse(file, null));
-            if (ui != null) {
-                ui.addToProgress(file.getName(), errors);
+            ByteBuffer bytes;
+            String baseUri;
+            final long modified;
+            if (file != null) {
+                bytes = pageReader.read(file);
+                baseUri = file.getAbsolutePath();
+                modified = file.lastModified();
+            } else {
+                bytes = ByteBuffer.wrap(content);
+                baseUri = name;
+                modified = 0;
+            }
+            final long size = bytes.remaining();
+            final long hash = ContentHash.hash(bytes);
+            // Skip exact duplicates before spending time on parsing them
+            if (duplicateFilter != null && !duplicateFilter.add(hash)) {
+                if (journal != null) {
+                    journal.addFile(getJournalName(), size, modified, hash,
+                                    0, false);
+                }
+                if (ui != null) {
+                    ui.addSkippedDuplicate(name);
+                }
+                return;
+            }
+            // Skip pages that can't contain anything to parse without a DOM
+            PageType type = PageType.sniff(bytes);
+            if (type == PageType.OTHER) {
+                if (journal != null) {
+                    journal.addFile(getJournalName(), size, modified, hash,
+                                    0, false);
+                }
+                if (ui != null) {
+                    ui.addSkippedIrrelevant(name);
+                }
+                return;
             }
+            isLarge = size > PARALLEL_THRESHOLD;
+            writes = new WriteTracker() {
+                @Override void finished(ArrayList<String> errors) {
+                    finish(size, modified, hash, errors);
+                }
+            };
+            ArrayList<String> errors;
+            if (type == PageType.VIEWTOPIC && size > STREAM_THRESHOLD) {
+                errors = streamViewtopic(bytes, baseUri);
+            } else if (scanner != null && !isLarge &&
+                       (type == PageType.VIEWTOPIC ||
+                        type == PageType.VIEWFORUM)) {
+                errors = scanPage(type, bytes, baseUri);
+            } else {
+                String html = pageReader.decode(bytes);
+                errors = parseDocument(Jsoup.parse(html, baseUri));
+            }
+            writes.parsed(errors);
         } catch (IOException e) {
             if (ui != null) {
-                ui.addToProgress(file.getName(), "Couldn't read file.");
+                ui.addToProgress(name, "Couldn't read file.");
+            }
+        }
+    }
+    
+    /**
+     * Records the file in the journal and displays the progress and
+     * freshness latency, once all of its records have been written or have
+     * failed. Until then, a crash
+     * would lose records, so the file mustn't be skipped by {@code --resume}.
+     * @param size the size of the file in bytes
+     * @param modified the time the file was last modified, or 0 if unknown
+     * @param hash the {@link ContentHash} of the file
+     * @param errors errors encountered (empty if there were no errors)
+     */
+    private void finish(long size, long modified, long hash,
+                        ArrayList<String> errors) {
+        if (journal != null) {
+            journal.addFile(getJournalName(), size, modified, hash,
+                            errors.size(), hasQueuedPosts);
+        }
+        if (ui != null) {
+            ui.addToProgress(name, errors);
+            if (isWatched) {
+                ui.addFreshness(name, System.currentTimeMillis() - modified);
             }
         }
     }
     
+    /**
+     * @return the name this task's file is recorded with in a {@link Journal}
+     */
+    private String getJournalName() {
+        return file != null ? getJournalName(file) : name;
+    }
+    
+    /**
+     * Parses a viewtopic or viewforum page with the {@link PageScanner}. If the
+     * scanner can't handle the page, it is parsed with jsoup instead.
+     * @param type the type of the page
+     * @param bytes the raw bytes of the page (the position isn't changed)
+     * @param baseUri the URI to resolve links in the page against
+     * @return errors encountered (empty if there were no errors)
+     */
+    private ArrayList<String> scanPage(PageType type, ByteBuffer bytes,
+                                       String baseUri) {
+        if (scanner.isVerifying()) {
+            return verifyPage(type, bytes, baseUri);
+        }
+        ArrayList<String> errors = null;
+        if (type == PageType.VIEWTOPIC) {
+            PageScanner.Viewtopic page = scanner.scanViewtopic(bytes, baseUri,
+                                                               userCache);
+            if (page != null) {
+                errors = insertPosts(page.getPosts(), page.getTopicId(),
+                                     new ArrayList<String>());
+            }
+        } else {
+            PageScanner.Viewforum page = scanner.scanViewforum(bytes);
+            if (page != null) {
+                errors = new ArrayList<>();
+                for (Topic topic : page.getTopics()) {
+                    insertTopic(topic);
+                }
+            }
+        }
+        if (ui != null) {
+            ui.addScannedPage(errors == null);
+        }
+        if (errors == null) {
+            errors = parseDocument(Jsoup.parse(pageReader.decode(bytes),
+                                               baseUri));
+        }
+        return errors;
+    }
+    
+    /**
+     * Parses a viewtopic or viewforum page both with the {@link PageScanner}
+     * and with jsoup. The records from jsoup are sent to the database, and
+     * every record that the scanner got differently is reported as an error.
+     * @param type the type of the page
+     * @param bytes the raw bytes of the page (the position isn't changed)
+     * @param baseUri the URI to resolve links in the page against
+     * @return errors encountered (empty if there were no errors)
+     */
+    private ArrayList<String> verifyPage(PageType type, ByteBuffer bytes,
+                                         String baseUri) {
+        // Decoding moves the position, and the scanner needs the whole page
+        Document document = Jsoup.parse(pageReader.decode(bytes.duplicate()),
+                                        baseUri);
+        Element punElement = document.getElementsByClass("pun").first();
+        ArrayList<String> mismatches = null;
+        if (punElement != null && PageType.fromId(punElement.id()) == type) {
+            // Users are only added to the cache by the jsoup records
+            if (type == PageType.VIEWTOPIC) {
+                PageScanner.Viewtopic page = scanner.scanViewtopic(bytes,
+                                                                   baseUri,
+                                                                   null);
+                if (page != null) {
+                    mismatches = ScannerVerifier.compare(page, punElement,
+                                                         dateParser);
+                }
+            } else {
+                PageScanner.Viewforum page = scanner.scanViewforum(bytes);
+                if (page != null) {
+                    mismatches = ScannerVerifier.compare(page, punElement,
+                                                         dateParser);
+                }
+            }
+        }
+        if (ui != null) {
+            ui.addScannedPage(mismatches == null);
+            if (mismatches != null) {
+                ui.addVerifiedPage(mismatches.isEmpty());
+            }
+        }
+        ArrayList<String> errors = parseDocument(document);
+        if (mismatches != null) {
+            errors.addAll(mismatches);
+        }
+        return errors;
+    }
+    
     /**
      * Parses a PunBB HTML document. The data will be placed in a database.
      * If parsing an item (for instance, a post) fails, it will be skipped and a
@@ -66,13 +336,12 @@ public final class ParseTask implements Runnable {
     private ArrayList<String> parseDocument(Document document) {
         Element punElement = document.getElementsByClass("pun").first();
         if (punElement != null) {
-            switch (punElement.id()) {
-                case "punviewpoll":
-                case "punviewtopic":
+            switch (PageType.fromId(punElement.id())) {
+                case VIEWTOPIC:
                     return parseViewtopic(punElement);
-                case "punviewforum":
+                case VIEWFORUM:
                     return parseViewforum(punElement);
-                case "punindex":
+                case INDEX:
                     return parseIndex(punElement);
             }
         }
@@ -83,7 +352,8 @@ public final class ParseTask implements Runnable {
     /**
      * Parses a {@code #punviewtopic} element. The data will be placed in a
      * database. If parsing a post or a user fails, it will be skipped and a
-     * string describing the error will be added to the return value.
+     * string describing the error will be added to the return value. The
+     * posts of large pages are converted in parallel.
      * @param element {@code #punviewtopic} element
      * @param database database to place data into
      * @return errors encountered (empty if there were no errors)
@@ -92,37 +362,140 @@ public final class ParseTask implements Runnable {
         ArrayList<String> errors = new ArrayList<>();
         
         // Store all posts in list
-        Elements postElements = element.getElementsByClass("blockpost");
-        ArrayList<Post> posts = new ArrayList<>();
-        for (Element postElement : postElements) {
-            try {
-                posts.add(new Post(postElement, dateParser));
-            } catch (IllegalArgumentException e) {
-                errors.add("Error in input data: " + e.getLocalizedMessage());
+        final Elements postElements = element.getElementsByClass("blockpost");
+        PostConverter converter = new PostConverter(dateParser, userCache) {
+            @Override Element getElement(int index,
+                                         Collection<String> errors) {
+                return postElements.get(index);
             }
-        }
+        };
+        ArrayList<Post> posts = converter.convert(0, postElements.size(),
+                                                  isLarge, errors);
         
+        return insertPosts(posts, findContainerId(element), errors);
+    }
+    
+    /**
+     * Sends the posts of a viewtopic page (including user data) to the
+     * database. If the topic ID isn't known, it is looked up in
+     * {@link IdMappings}, which may queue the posts.
+     * @param posts the posts of the page
+     * @param topicId the topic ID from the page links, or {@code null}
+     * @param errors a list to add errors to
+     * @return {@code errors}
+     */
+    private ArrayList<String> insertPosts(ArrayList<Post> posts,
+                                          Integer topicId,
+                                          ArrayList<String> errors) {
         // Find topic ID
-        Integer topicId = findContainerId(element);
-        if (topicId == null) {
-            topicId = idMappings.getTopicId(posts);
+        if (topicId == null && !posts.isEmpty()) {
+            topicId = idMappings.getTopicId(posts, getJournalName());
+            hasQueuedPosts = topicId == null;
         }
         
         // Add the previously parsed posts (including user data) to database
         for (Post post : posts) {
-            try {
-                if (topicId != null) {
-                    database.insert(post, topicId);
-                }
-                database.insert(post.getPostUser());
-            } catch (SQLException e) {
-                errors.add("SQL error: " + e.getLocalizedMessage());
+            if (topicId != null) {
+                database.insert(post, topicId, writes.add());
             }
+            insertUser(post.getPostUser());
         }
         
         return errors;
     }
     
+    /**
+     * Parses a large viewtopic page a batch of posts at a time, without
+     * building a DOM of the whole page. Only the post IDs of the page and the
+     * current batch are kept in memory, and the posts of each batch are
+     * converted in parallel. If the topic ID can't be found from page links or
+     * {@link IdMappings}, the posts have to be queued, so the whole page is
+     * parsed normally instead.
+     * @param bytes the raw bytes of the page (the position isn't changed)
+     * @param baseUri the URI to resolve links in the page against
+     * @return errors encountered (empty if there were no errors)
+     */
+    private ArrayList<String> streamViewtopic(final ByteBuffer bytes,
+                                              final String baseUri) {
+        final ArrayList<Integer> starts = PostSplitter.findPosts(bytes);
+        if (starts.isEmpty()) {
+            return parseDocument(Jsoup.parse(pageReader.decode(bytes),
+                                             baseUri));
+        }
+        final int last = starts.size() - 1;
+        
+        // Find topic ID from the page links above or below the posts
+        Integer topicId = findContainerId(parseFragment(
+                bytes, bytes.position(), starts.get(0), baseUri));
+        if (topicId == null) {
+            ArrayList<Integer> postIds = new ArrayList<>(starts.size());
+            for (int start : starts) {
+                postIds.add(PostSplitter.getPostId(bytes, start));
+            }
+            topicId = idMappings.findTopicId(postIds);
+        }
+        if (topicId == null) {
+            topicId = findContainerId(parseFragment(
+                    bytes, starts.get(last), bytes.limit(), baseUri));
+        }
+        if (topicId == null) {
+            return parseDocument(Jsoup.parse(pageReader.decode(bytes),
+                                             baseUri));
+        }
+        
+        // Parse and add each post (including user data) to database
+        PostConverter converter = new PostConverter(dateParser, userCache) {
+            @Override Element getElement(int index,
+                                         Collection<String> errors) {
+                int end = index < last ? starts.get(index + 1) : bytes.limit();
+                Element postElement = parseFragment(bytes, starts.get(index),
+                        end, baseUri).getElementsByClass("blockpost").first();
+                if (postElement == null) {
+                    return InputErrors.add(errors, "Couldn't find post at " +
+                                                   "byte " + starts.get(index));
+                }
+                return postElement;
+            }
+        };
+        ArrayList<String> errors = new ArrayList<>();
+        for (int start = 0; start <= last; start += STREAM_BATCH_SIZE) {
+            int end = Math.min(last + 1, start + STREAM_BATCH_SIZE);
+            for (Post post : converter.convert(start, end, true, errors)) {
+                database.insert(post, topicId, writes.add());
+                insertUser(post.getPostUser());
+            }
+        }
+        return errors;
+    }
+    
+    /**
+     * Sends a user to the database, unless it already has been sent. If
+     * sending fails, the user is removed from the {@link UserCache} so that a
+     * later post by the same user tries again.
+     * @param user the user to send
+     */
+    private void insertUser(PostUser user) {
+        if (!user.isKnown()) {
+            database.insert(user, writes.addUser(user.getId(), userCache));
+        }
+    }
+    
+    /**
+     * Parses a part of a page.
+     * @param bytes the raw bytes of the page
+     * @param start the index of the first byte of the part
+     * @param end the index after the last byte of the part
+     * @param baseUri the URI to resolve links in the part against
+     * @return the body of a document containing the part
+     */
+    private Element parseFragment(ByteBuffer bytes, int start, int end,
+                                  String baseUri) {
+        ByteBuffer part = bytes.duplicate();
+        part.position(start);
+        part.limit(end);
+        return Jsoup.parseBodyFragment(pageReader.decode(part), baseUri).body();
+    }
+    
     /**
      * Parses a {@code #punviewforum} element. The data will be placed in a
      * database. If parsing a topic fails, it will be skipped and a string
@@ -138,27 +511,31 @@ public final class ParseTask implements Runnable {
             // Add all topics to database
             Elements topicElements = element.getElementsByTag("tr");
             for (Element topicElement : topicElements) {
-                try {
-                    // Skip the top row, which only contains headings
-                    if (!topicElement.getElementsByClass("tclcon").isEmpty()) {
-                        Topic topic = new Topic(topicElement, dateParser,
-                                                forumId);
-                        if (!topic.isMoved()) {// Moved topics not supported yet
-                            idMappings.setTopicId(topic, database, ui);
-                            database.insert(topic);
-                        }
-                    }
-                } catch (IllegalArgumentException e) {
-                    errors.add("Error in input data: " +
-                               e.getLocalizedMessage());
-                } catch (SQLException e) {
-                    errors.add("SQL error: " + e.getLocalizedMessage());
+                // Skip the top row, which only contains headings
+                if (topicElement.getElementsByClass("tclcon").isEmpty()) {
+                    continue;
+                }
+                Topic topic = Topic.parse(topicElement, dateParser, forumId,
+                                          errors);
+                if (topic != null) {
+                    insertTopic(topic);
                 }
             }
         }
         return errors;
     }
     
+    /**
+     * Sends a topic to the database, unless it has been moved.
+     * @param topic the topic to send
+     */
+    private void insertTopic(Topic topic) {
+        if (!topic.isMoved()) { // Moved topics not supported yet
+            idMappings.setTopicId(topic, database, ui);
+            database.insert(topic, writes.add());
+        }
+    }
+    
     /**
      * Parses a {@code #punindex} element. The data will be placed in a
      * database. If parsing a category or forum fails, it will be skipped and a
@@ -174,37 +551,28 @@ public final class ParseTask implements Runnable {
         Elements categoryElements = element.getElementsByClass("blocktable");
         int categoryPosition = 0;
         for (Element categoryElement : categoryElements) {
-            try {
-                Category category = new Category(categoryElement,
-                                                 categoryPosition);
-                database.insert(category);
-                
-                // Add all forums to database
-                Elements forumElements =
-                        categoryElement.getElementsByTag("tr");
-                int forumPosition = -1;
-                for (Element forumElement : forumElements) {
-                    // This if skips the first row, which only has headings
-                    if (forumPosition >= 0) {
-                        try {
-                            Forum forum = new Forum(forumElement, dateParser,
-                                    forumPosition, category.getId());
-                            database.insert(forum);
-                        } catch (IllegalArgumentException e) {
-                            errors.add("Error in input data: " +
-                                       e.getLocalizedMessage());
-                        } catch (SQLException e) {
-                            errors.add("SQL error: " + e.getLocalizedMessage());
-                        }
+            Category category = Category.parse(categoryElement,
+                                               categoryPosition++, errors);
+            if (category == null) {
+                continue;
+            }
+            database.insert(category, writes.add());
+            
+            // Add all forums to database
+            Elements forumElements = categoryElement.getElementsByTag("tr");
+            int forumPosition = -1;
+            for (Element forumElement : forumElements) {
+                // This if skips the first row, which only has headings
+                if (forumPosition >= 0) {
+                    Forum forum = Forum.parse(forumElement, dateParser,
+                                              forumPosition, category.getId(),
+                                              errors);
+                    if (forum != null) {
+                        database.insert(forum, writes.add());
                     }
-                    forumPosition++;
                 }
-            } catch (IllegalArgumentException e) {
-                errors.add("Error in input data: " + e.getLocalizedMessage());
-            } catch (SQLException e) {
-                errors.add("SQL error: " + e.getLocalizedMessage());
+                forumPosition++;
             }
-            categoryPosition++;
         }
         return errors;
     }
@@ -215,14 +583,18 @@ public final class ParseTask implements Runnable {
      * @param element element containing at least one {@code .pagelink} element
      * @return the ID indicated in the page links, or {@code null} when failing
      */
-    private static Integer findContainerId(Element element) {
-        try {
-            String topicUrl = element.getElementsByClass("pagelink").first().
-                              getElementsByTag("a").first().attr("href");
-            return Integer.parseInt(TextParser.getQueryValue(topicUrl, "id"));
-        } catch (NumberFormatException | NullPointerException e) {
+    static Integer findContainerId(Element element) {
+        Element pagelink = element.getElementsByClass("pagelink").first();
+        if (pagelink == null) {
+            return null;
+        }
+        Element link = pagelink.getElementsByTag("a").first();
+        if (link == null) {
             return null;
         }
+        String url = link.attr("href");
+        int id = TextParser.parseInt(TextParser.getQueryValue(url, "id"));
+        return id == TextParser.NOT_A_NUMBER ? null : id;
     }
 
 }
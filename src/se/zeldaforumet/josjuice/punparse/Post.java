@@ -1,7 +1,10 @@
 package se.zeldaforumet.josjuice.punparse;
 
-import java.text.ParseException;
+import java.util.Collection;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 
 /**
  * Represents a record in the PunBB 'posts' table. Immutable.
@@ -9,6 +12,9 @@ import org.jsoup.nodes.Element;
  */
 public final class Post {
     
+    /** Learned from the first post that has to be searched. */
+    private static final ExtractionPlan plan = new ExtractionPlan();
+    
     private final PostUser postUser;
     private final boolean isEdited;
     
@@ -21,55 +27,79 @@ public final class Post {
     private final String editedBy;
     
     /**
-     * Constructs a {@code Post}.
+     * Parses a post. If required parts of HTML are missing, an error is added
+     * to {@code errors} instead of throwing an exception.
      * @param element HTML element representing a post.
      * The element should always have the {@code .blockpost} class.
      * @param dateParser A {@link DateParser} for parsing dates.
-     * @throws IllegalArgumentException if required parts of HTML are missing
+     * @param userCache A {@link UserCache} that the poster is added to, or
+     * {@code null}. See {@link PostUser#isKnown()}.
+     * @param errors A list to add an error to if the post can't be parsed.
+     * @return the post, or {@code null} if it can't be parsed
      */
-    public Post(Element element, DateParser dateParser)
-            throws IllegalArgumentException {
-        try {
-            // Find post ID
-            String idText = element.id();
-            try {
-                // Skip first character 'p' and use the rest of the string as ID
-                id = Integer.parseInt(idText.substring(1));
-            } catch (NumberFormatException | IndexOutOfBoundsException e) {
-                throw new IllegalArgumentException("Invalid post ID: "
-                                                   + idText, e);
-            }
-        } catch (NullPointerException e) {
-            throw new IllegalArgumentException("Couldn't get post ID.", e);
+    public static Post parse(Element element, DateParser dateParser,
+                             UserCache userCache, Collection<String> errors) {
+        if (element == null) {
+            return InputErrors.add(errors, "Couldn't get post ID.");
+        }
+        // Find post ID. Skip first character 'p' and use the rest as ID
+        String idText = element.id();
+        int id = idText.isEmpty() ? TextParser.NOT_A_NUMBER
+                                  : TextParser.parseInt(idText.substring(1));
+        if (id == TextParser.NOT_A_NUMBER) {
+            return InputErrors.add(errors, "Invalid post ID: " + idText);
         }
         
-        // Find poster ID and username
-        postUser = new PostUser(element);
+        // Find all other fields
+        Extractor fields = Extractor.extract(element);
         
-        try {
-            // Find message text
-            Element postmsg = element.getElementsByClass("postmsg").first();
-            // Set "hide smilies" if there are no smilies in the post
-            hideSmilies = !TextParser.containsSmilies(postmsg);
-            // Parse message text to BBCode
-            message = TextParser.parseMessage(postmsg);
-        } catch (NullPointerException e) {
-            throw new IllegalArgumentException("Couldn't get message body " +
-                                               "of post " + id, e);
+        if (fields.postmsg == null) {
+            return InputErrors.add(errors, "Couldn't get message body of " +
+                                           "post " + id);
+        }
+        if (fields.dateLink == null) {
+            return InputErrors.add(errors, "Couldn't get date of post " + id);
+        }
+        // Parse the date the message was posted
+        String date = fields.dateLink.text();
+        long posted = dateParser.tryParse(date);
+        if (posted == DateParser.INVALID_DATE) {
+            return InputErrors.add(errors, DateParser.getErrorMessage(date));
         }
         
-        try {
-            // Find the date the message was posted
-            String dateString = element.getElementsByTag("a").first().text();
-            // Parse the date
-            posted = dateParser.parse(dateString);
-        } catch (NullPointerException e) {
-            throw new IllegalArgumentException("Couldn't get date of post " +
-                                               id, e);
-        } catch (ParseException e) {
-            throw new IllegalArgumentException(e.getLocalizedMessage());
+        // Find poster ID and username. This is done after everything else
+        // that can fail, so that the user only is added to the cache if the
+        // post can be used
+        PostUser postUser = PostUser.parse(fields.user, userCache, errors);
+        if (postUser == null) {
+            return null;
         }
         
+        // Parse message text to BBCode, and set "hide smilies" if no smilies
+        // were found while doing so
+        TextParser.Message message =
+                TextParser.parsePostMessage(fields.postmsg);
+        return new Post(id, postUser, message.getText(),
+                        !message.hasSmilies(), posted);
+    }
+    
+    /**
+     * Constructs a {@code Post} from values that already have been found, for
+     * instance by {@link #parse} or a {@link PageScanner}.
+     * @param id Post ID.
+     * @param postUser The user that made the post.
+     * @param message The content of the post in BBCode.
+     * @param hideSmilies {@code true} if there are no smilies in the post.
+     * @param posted Time posted (Unix timestamp).
+     */
+    Post(int id, PostUser postUser, String message, boolean hideSmilies,
+         long posted) {
+        this.id = id;
+        this.postUser = postUser;
+        this.message = message;
+        this.hideSmilies = hideSmilies;
+        this.posted = posted;
+        
         // TODO find out if edited
         isEdited = false;
         edited = 0;
@@ -149,4 +179,57 @@ public final class Post {
         return editedBy;
     }
     
+    /**
+     * Finds all elements that post fields are read from in one traversal of a
+     * {@code .blockpost} element, including the fields of the user.
+     */
+    private static final class Extractor implements NodeVisitor {
+        
+        private final PostUser.Extractor user = new PostUser.Extractor();
+        private Element postmsg = null;
+        private Element dateLink = null;
+        
+        /**
+         * Finds the fields of a post by following the {@link ExtractionPlan}
+         * of posts. If the plan doesn't match, the post is searched in one
+         * traversal instead, and the plan is learned from it.
+         * @param element a {@code .blockpost} element
+         * @return an {@code Extractor} with the fields of the post
+         */
+        private static Extractor extract(Element element) {
+            Extractor fields = new Extractor();
+            Element[] planned = plan.follow(element);
+            if (planned != null) {
+                fields.dateLink = planned[0];
+                fields.postmsg = planned[1];
+                fields.user.find(planned[2], planned[3], fields.postmsg);
+            } else {
+                new NodeTraversor(fields).traverse(element);
+                plan.learn(element, fields.dateLink, fields.postmsg,
+                           fields.user.getDt(), fields.user.getUsertitle());
+            }
+            return fields;
+        }
+        
+        @Override public void head(Node node, int depth) {
+            user.head(node, depth);
+            if (!(node instanceof Element)) {
+                return;
+            }
+            Element element = (Element) node;
+            // The first link in a post is the date
+            if (dateLink == null && element.tagName().equals("a")) {
+                dateLink = element;
+            }
+            if (postmsg == null && element.hasClass("postmsg")) {
+                postmsg = element;
+            }
+        }
+        
+        @Override public void tail(Node node, int depth) {
+            user.tail(node, depth);
+        }
+        
+    }
+    
 }
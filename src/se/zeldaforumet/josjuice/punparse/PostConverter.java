@@ -0,0 +1,146 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.jsoup.nodes.Element;
+
+/**
+ * Converts the posts of a page to {@link Post} objects, optionally splitting
+ * them into chunks that are converted in parallel. All pages share one
+ * {@link ForkJoinPool}, so that the idle cores at the end of a run can help
+ * with the last few large pages. The posts are returned in their original
+ * order no matter how they were converted. Subclasses decide where the
+ * post elements come from.
+ * @author JosJuice
+ */
+abstract class PostConverter {
+
+    /** A chunk with this many posts or fewer is converted by one thread. */
+    private static final int CHUNK_SIZE = 8;
+
+    /** Shared by all pages. Its threads are daemon threads. */
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    private final DateParser dateParser;
+    private final UserCache userCache;
+
+    /**
+     * Creates a {@code PostConverter}.
+     * @param dateParser A {@link DateParser} for parsing dates.
+     * @param userCache A {@link UserCache} for skipping users that already
+     * have been sent to the database, or {@code null}.
+     */
+    PostConverter(DateParser dateParser, UserCache userCache) {
+        this.dateParser = dateParser;
+        this.userCache = userCache;
+    }
+
+    /**
+     * Gets a post element. Called from several threads at once when
+     * converting in parallel.
+     * @param index the index of the post within its page
+     * @param errors a list to add an error to if the post can't be found
+     * @return a {@code .blockpost} element, or {@code null} if the post can't
+     * be found
+     */
+    abstract Element getElement(int index, Collection<String> errors);
+
+    /**
+     * Converts a range of posts. Posts that can't be converted are skipped,
+     * and a string describing the error is added to {@code errors}.
+     * @param start the index of the first post to convert
+     * @param end the index after the last post to convert
+     * @param isParallel {@code true} to convert the posts in parallel on the
+     * shared pool, {@code false} to convert them on the calling thread
+     * @param errors a list to add errors to, in the order of the posts
+     * @return the converted posts in their original order
+     */
+    ArrayList<Post> convert(int start, int end, boolean isParallel,
+                            ArrayList<String> errors) {
+        Post[] posts = new Post[end - start];
+        String[] postErrors = new String[end - start];
+        Chunk chunk = new Chunk(start, end, start, posts, postErrors);
+        if (isParallel && end - start > CHUNK_SIZE) {
+            pool.invoke(chunk);
+        } else {
+            chunk.convert();
+        }
+
+        ArrayList<Post> result = new ArrayList<>(posts.length);
+        for (int i = 0; i < posts.length; i++) {
+            if (posts[i] != null) {
+                result.add(posts[i]);
+            } else {
+                errors.add(postErrors[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A range of posts that is split in halves until it is small enough to
+     * be converted by one thread. Each post is stored at its own index, so no
+     * locking is needed and the order is kept.
+     */
+    private final class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+        private final int offset;
+        private final Post[] posts;
+        private final String[] errors;
+
+        /**
+         * @param start the index of the first post in the chunk
+         * @param end the index after the last post in the chunk
+         * @param offset the index of the post stored at index 0 of
+         * {@code posts} and {@code errors}
+         * @param posts where to store the converted posts
+         * @param errors where to store the errors of posts that can't be
+         * converted
+         */
+        private Chunk(int start, int end, int offset, Post[] posts,
+                      String[] errors) {
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+            this.posts = posts;
+            this.errors = errors;
+        }
+
+        @Override protected void compute() {
+            if (end - start <= CHUNK_SIZE) {
+                convert();
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new Chunk(start, middle, offset, posts, errors),
+                          new Chunk(middle, end, offset, posts, errors));
+            }
+        }
+
+        /**
+         * Converts the posts of this chunk on the calling thread.
+         */
+        private void convert() {
+            // Each post that can't be converted adds one error
+            ArrayList<String> postErrors = new ArrayList<>(1);
+            for (int i = start; i < end; i++) {
+                Element element = getElement(i, postErrors);
+                if (element != null) {
+                    posts[i - offset] = Post.parse(element, dateParser,
+                                                   userCache, postErrors);
+                }
+                if (!postErrors.isEmpty()) {
+                    errors[i - offset] = postErrors.get(0);
+                    postErrors.clear();
+                }
+            }
+        }
+
+    }
+
+}
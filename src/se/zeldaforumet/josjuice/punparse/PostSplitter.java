@@ -0,0 +1,72 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Finds the posts of a viewtopic page in its raw bytes without building a DOM,
+ * so that pages with thousands of posts can be parsed one post at a time. Only
+ * charsets that encode ASCII characters as single bytes (UTF-8, ISO-8859-1,
+ * etc.) are supported.
+ * @author JosJuice
+ */
+public final class PostSplitter {
+
+    private static final byte[] CLASS_BLOCKPOST =
+            PageType.ascii("class=\"blockpost");
+    private static final byte[] POST_ID = PageType.ascii("id=\"p");
+
+    /**
+     * Finds the start of each {@code .blockpost} element.
+     * @param bytes the raw bytes of a page (the position isn't changed)
+     * @return the index of the {@code <} of each post's start tag, in order
+     */
+    public static ArrayList<Integer> findPosts(ByteBuffer bytes) {
+        ArrayList<Integer> starts = new ArrayList<>();
+        int end = bytes.limit();
+        int classIndex = PageType.indexOf(bytes, CLASS_BLOCKPOST,
+                                          bytes.position(), end);
+        while (classIndex != -1) {
+            int tagStart = classIndex;
+            while (tagStart > bytes.position() && bytes.get(tagStart) != '<') {
+                tagStart--;
+            }
+            starts.add(tagStart);
+            classIndex = PageType.indexOf(bytes, CLASS_BLOCKPOST,
+                                          classIndex + CLASS_BLOCKPOST.length,
+                                          end);
+        }
+        return starts;
+    }
+
+    /**
+     * Reads the ID of a post from its start tag.
+     * @param bytes the raw bytes of a page
+     * @param start the index of the start tag, as returned by
+     * {@link #findPosts}
+     * @return the post ID, or -1 if the tag doesn't have a valid one
+     */
+    public static int getPostId(ByteBuffer bytes, int start) {
+        int tagEnd = start;
+        while (tagEnd < bytes.limit() && bytes.get(tagEnd) != '>') {
+            tagEnd++;
+        }
+        int idIndex = PageType.indexOf(bytes, POST_ID, start, tagEnd);
+        if (idIndex == -1) {
+            return -1;
+        }
+        long id = 0;
+        int digitCount = 0;
+        for (int i = idIndex + POST_ID.length; i < tagEnd; i++) {
+            byte b = bytes.get(i);
+            if (b == '"') {
+                break;
+            } else if (b < '0' || b > '9' || ++digitCount > 9) {
+                return -1;
+            }
+            id = id * 10 + (b - '0');
+        }
+        return digitCount > 0 ? (int) id : -1;
+    }
+
+}
@@ -1,6 +1,10 @@
 package se.zeldaforumet.josjuice.punparse;
 
+import java.util.Collection;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 
 /**
  * Represents a record in the PunBB 'users' table. Only contains the columns
@@ -16,57 +20,101 @@ public final class PostUser {
     private final boolean hasAvatar;
     private final String signature;
     
+    private final boolean isKnown;
+    
     /**
-     * Constructs a {@code User}.
+     * Parses the user information in a post. If the user already is in a
+     * {@link UserCache}, the signature isn't parsed. If required parts of HTML
+     * are missing, an error is added to {@code errors} instead of throwing an
+     * exception.
      * @param element HTML element representing the user information in a post.
      * The element should always have the {@code .blockpost} class.
-     * @throws IllegalArgumentException if required parts of HTML are missing
+     * @param userCache A {@link UserCache} that the user is added to, or
+     * {@code null}.
+     * @param errors A list to add an error to if the user can't be parsed.
+     * @return the user, or {@code null} if it can't be parsed
      */
-    public PostUser(Element element) throws IllegalArgumentException {
-        try {
-            // Find username and ID
-            Element posterElement = element.getElementsByTag("dt").first();
-            // Get username
-            username = posterElement.text();
-            // Check if this is a guest
-            Element posterLink = posterElement.getElementsByTag("a").first();
-            if (posterLink == null) {
-                id = 1; // The ID 1 is used by all guests
-            } else {
-                // Get ID from profile URL
-                try {
-                    id = Integer.parseInt(TextParser.getQueryValue(
-                                          posterLink.attr("href"), "id"));
-                } catch (NullPointerException | NumberFormatException e) {
-                    throw new IllegalArgumentException("Couldn't get poster " +
-                                                       "ID of post", e);
-                }
+    public static PostUser parse(Element element, UserCache userCache,
+                                 Collection<String> errors) {
+        if (element == null) {
+            return InputErrors.add(errors, "Couldn't get poster of post");
+        }
+        Extractor fields = new Extractor();
+        new NodeTraversor(fields).traverse(element);
+        return parse(fields, userCache, errors);
+    }
+    
+    /**
+     * Parses a user from fields that already have been found.
+     * @param fields an {@link Extractor} that has found the fields of a
+     * {@code .blockpost} element
+     * @param userCache A {@link UserCache} that the user is added to, or
+     * {@code null}.
+     * @param errors A list to add an error to if the user can't be parsed.
+     * @return the user, or {@code null} if it can't be parsed
+     */
+    static PostUser parse(Extractor fields, UserCache userCache,
+                          Collection<String> errors) {
+        if (fields.dt == null) {
+            return InputErrors.add(errors, "Couldn't get poster of post");
+        }
+        // Check if this is a guest
+        int id;
+        if (fields.posterLink == null) {
+            id = 1; // The ID 1 is used by all guests
+        } else {
+            // Get ID from profile URL
+            id = TextParser.parseInt(TextParser.getQueryValue(
+                    fields.posterLink.attr("href"), "id"));
+            if (id == TextParser.NOT_A_NUMBER) {
+                return InputErrors.add(errors, "Couldn't get poster ID of " +
+                                               "post");
             }
-        } catch (NullPointerException e) {
-            throw new IllegalArgumentException("Couldn't get poster " +
-                                               "of post", e);
         }
         
-        try {
-            // Get title
-            title = element.getElementsByClass("usertitle").first().text();
-        } catch (NullPointerException e) {
-            throw new IllegalArgumentException("Couldn't get user title " +
-                                               "of user " + id, e);
+        if (fields.usertitle == null) {
+            return InputErrors.add(errors, "Couldn't get user title of " +
+                                           "user " + id);
         }
         
-        // Find out whether the user is using an avatar
-        hasAvatar = !element.getElementsByClass("postavatar").isEmpty();
-        
-        // Find signature
-        Element postsignature =
-                element.getElementsByClass("postsignature").first();
-        if (postsignature == null) {
-            signature = null;
-        } else {
+        boolean isKnown = userCache != null && !userCache.add(id);
+        String signature = null;
+        if (fields.postsignature != null && !isKnown) {
             // Parse signature to BBCode
-            signature = TextParser.parseMessage(postsignature);
+            signature = TextParser.parseMessage(fields.postsignature);
         }
+        return new PostUser(id, fields.dt.text(), fields.usertitle.text(),
+                            fields.hasAvatar, signature, isKnown);
+    }
+    
+    /**
+     * Constructs a {@code User} from values that already have been found, for
+     * instance by {@link #parse} or a {@link PageScanner}.
+     * @param id User ID.
+     * @param username Username.
+     * @param title User title.
+     * @param hasAvatar {@code true} if the user has an avatar.
+     * @param signature Signature in BBCode, or {@code null}.
+     * @param isKnown {@code true} if the user already has been seen. See
+     * {@link #isKnown()}.
+     */
+    PostUser(int id, String username, String title, boolean hasAvatar,
+             String signature, boolean isKnown) {
+        this.id = id;
+        this.username = StringPool.intern(username);
+        this.title = StringPool.intern(title);
+        this.hasAvatar = hasAvatar;
+        this.signature = signature;
+        this.isKnown = isKnown;
+    }
+    
+    /**
+     * @return {@code true} if the user already had been seen when this object
+     * was created, in which case the signature wasn't parsed and the user
+     * doesn't need to be sent to the database
+     */
+    public boolean isKnown() {
+        return isKnown;
     }
     
     /**
@@ -98,10 +146,98 @@ public final class PostUser {
     }
     
     /**
-     * @return Signature in BBCode, or {@code null} if there is no signature
+     * @return Signature in BBCode, or {@code null} if there is no signature or
+     * the user {@link #isKnown() is known}
      */
     public String getSignature() {
         return signature;
     }
     
+    /**
+     * Finds all elements that user fields are read from in one traversal of a
+     * {@code .blockpost} element.
+     */
+    static final class Extractor implements NodeVisitor {
+        
+        private Element dt = null;
+        private boolean isInDt = false;
+        private Element posterLink = null;
+        private Element usertitle = null;
+        private boolean hasAvatar = false;
+        private Element postsignature = null;
+        
+        /**
+         * Finds the remaining fields from elements that already have been
+         * found, searching only the small parts of the post that they can be
+         * in.
+         * @param dt the {@code dt} element with the username
+         * @param usertitle the {@code .usertitle} element
+         * @param postmsg the {@code .postmsg} element, which the
+         * {@code .postsignature} element follows
+         */
+        void find(Element dt, Element usertitle, Element postmsg) {
+            this.dt = dt;
+            this.usertitle = usertitle;
+            posterLink = dt.getElementsByTag("a").first();
+            hasAvatar = !usertitle.parent().getElementsByClass("postavatar").
+                         isEmpty();
+            for (Element sibling : postmsg.siblingElements()) {
+                if (sibling.hasClass("postsignature")) {
+                    postsignature = sibling;
+                    break;
+                }
+            }
+        }
+        
+        /**
+         * @return the {@code dt} element with the username, or {@code null}
+         */
+        Element getDt() {
+            return dt;
+        }
+        
+        /**
+         * @return the {@code .usertitle} element, or {@code null}
+         */
+        Element getUsertitle() {
+            return usertitle;
+        }
+        
+        @Override public void head(Node node, int depth) {
+            if (!(node instanceof Element)) {
+                return;
+            }
+            Element element = (Element) node;
+            switch (element.tagName()) {
+                case "dt":
+                    if (dt == null) {
+                        dt = element;
+                        isInDt = true;
+                    }
+                    break;
+                case "a":
+                    if (isInDt && posterLink == null) {
+                        posterLink = element;
+                    }
+                    break;
+            }
+            if (usertitle == null && element.hasClass("usertitle")) {
+                usertitle = element;
+            }
+            if (element.hasClass("postavatar")) {
+                hasAvatar = true;
+            }
+            if (postsignature == null && element.hasClass("postsignature")) {
+                postsignature = element;
+            }
+        }
+        
+        @Override public void tail(Node node, int depth) {
+            if (node == dt) {
+                isInDt = false;
+            }
+        }
+        
+    }
+    
 }
@@ -1,11 +1,10 @@
 package se.zeldaforumet.josjuice.punparse;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.TimeZone;
 
 /**
  * Parses data from PunBB HTML output to an SQL database.
@@ -20,6 +19,17 @@ public final class PunParse {
         // Find optional arguments
         boolean append = false;
         String dateFormat = "yyyy-MM-dd HH:mm:ss";
+        String timeZone = null;
+        String charset = null;
+        String journalFile = "punparse.journal";
+        boolean resume = false;
+        boolean watch = false;
+        boolean dryRun = false;
+        boolean verifyScanner = false;
+        int batchSize = Database.DEFAULT_BATCH_SIZE;
+        long flushInterval = Database.DEFAULT_FLUSH_INTERVAL;
+        int connections = Database.DEFAULT_CONNECTIONS;
+        int queueSize = WriteBehindSink.DEFAULT_QUEUE_SIZE;
         for (String arg : args) {
             if (arg.equals("--append")) {
                 append = true;
@@ -27,78 +37,267 @@ public final class PunParse {
             if (arg.startsWith("--dateformat=")) {
                 dateFormat = arg.substring(13);
             }
+            if (arg.startsWith("--timezone=")) {
+                timeZone = arg.substring(11);
+            }
+            if (arg.startsWith("--charset=")) {
+                charset = arg.substring(10);
+            }
+            if (arg.startsWith("--journal=")) {
+                journalFile = arg.substring(10);
+            }
+            if (arg.equals("--watch")) {
+                watch = true;
+            }
+            if (arg.equals("--dry-run")) {
+                dryRun = true;
+            }
+            if (arg.equals("--verify-scanner")) {
+                verifyScanner = true;
+            }
+            try {
+                if (arg.startsWith("--batch-size=")) {
+                    batchSize = Integer.parseInt(arg.substring(13));
+                }
+                if (arg.startsWith("--flush-interval=")) {
+                    flushInterval = Long.parseLong(arg.substring(17));
+                }
+                if (arg.startsWith("--connections=")) {
+                    connections = Integer.parseInt(arg.substring(14));
+                }
+                if (arg.startsWith("--queue-size=")) {
+                    queueSize = Integer.parseInt(arg.substring(13));
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid number: " +
+                                   e.getLocalizedMessage());
+                return;
+            }
+            if (arg.equals("--resume")) {
+                resume = true;
+                append = true;
+            }
+        }
+        if (batchSize < 1 || flushInterval < 0 || connections < 1 ||
+            queueSize < 0) {
+            System.err.println("The batch size and the number of " +
+                               "connections must be at least 1, and the " +
+                               "flush interval and the queue size can't be " +
+                               "negative.");
+            return;
+        }
+        TimeZone zone = TimeZone.getDefault();
+        if (timeZone != null) {
+            zone = TimeZone.getTimeZone(timeZone);
+            // Unknown time zones are silently treated as GMT
+            if (zone.getID().equals("GMT") && !timeZone.equals("GMT")) {
+                System.err.println("Unknown time zone: " + timeZone);
+                return;
+            }
+        }
+        DateParser dateParser;
+        try {
+            dateParser = new DateParser(dateFormat, zone);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid date format: " + dateFormat);
+            return;
+        }
+        PageReader pageReader;
+        try {
+            pageReader = new PageReader(charset);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            return;
+        }
+        
+        String url = args.length > 1 && !args[1].startsWith("--") ? args[1]
+                                                                  : null;
+        if (url == null && !dryRun) {
+            System.err.println("No database URL was given.");
+            return;
         }
-        DateParser dateParser = new DateParser(dateFormat);
         
         // Do the work
-        System.out.println("Connecting to SQL database...");
-        try (Database database = new Database(args[1], null)) {
-            IdMappings idMappings = new IdMappings();
-            if (append) {
+        UserInterface ui = new UserInterface();
+        CountingSink counter = null;
+        if (dryRun) {
+            counter = new CountingSink();
+        } else {
+            System.out.println("Connecting to SQL database...");
+        }
+        // A dry run doesn't write a journal, since nothing is stored
+        try (RecordSink database = dryRun ? counter : new Database(url, null,
+                     batchSize, flushInterval, connections);
+             // Each writer gets a connection of its own
+             WriteBehindSink writeBehind = dryRun || queueSize == 0 ? null :
+                     new WriteBehindSink(database, connections, queueSize,
+                                         ui);
+             Journal journal = dryRun ? null : new Journal(
+                     new File(journalFile), resume)) {
+            RecordSink sink = writeBehind != null ? writeBehind : database;
+            IdMappings idMappings = new IdMappings(journal);
+            if (journal != null) {
+                journal.restoreMappings(idMappings);
+            }
+            if (append || dryRun) {
                 // TODO load IdMappings from database
             } else {
                 System.out.println("Creating tables...");
-                database.createTables();
+                sink.createTables();
             }
 
-            System.out.println("Finding files to parse...");
-            File directory = new File(args[0]);
-            ArrayList<File> files = getFilesInDirectory(directory);
-
-            if (files.size() <= 0) {
-                System.out.println("No files were found.");
-            } else {
-                System.out.println("Parsing files...");
-                UserInterface ui = new UserInterface(files.size());
-                int threads = Runtime.getRuntime().availableProcessors() + 1;
-                if (threads > files.size()) {
-                    threads = files.size();
-                }
-                ExecutorService es = Executors.newFixedThreadPool(threads);
+            System.out.println("Parsing files...");
+            long startTime = System.nanoTime();
+            int threads = Runtime.getRuntime().availableProcessors() + 1;
+            DuplicateFilter duplicateFilter = new DuplicateFilter();
+            PageScanner scanner = new PageScanner(pageReader, dateParser,
+                                                  verifyScanner);
+            ParseScheduler scheduler = new ParseScheduler(threads, sink, ui,
+                                                          idMappings,
+                                                          dateParser,
+                                                          pageReader,
+                                                          duplicateFilter,
+                                                          journal,
+                                                          new UserCache(),
+                                                          scanner);
+            // Files are parsed while they still are being found
+            File input = new File(args[0]);
+            if (args[0].equals("-")) {
                 try {
-                    for (File file : files) {
-                        es.execute(new ParseTask(file, database, ui, idMappings,
-                                   dateParser));
-                    }
-                } catch (IllegalArgumentException e) {
-                    System.err.println("Invalid date format: " + dateFormat);
+                    new WarcReader(scheduler, ui).read(System.in);
+                } catch (IOException e) {
+                    System.err.println("Couldn't read WARC data: " +
+                                       e.getLocalizedMessage());
                 }
+            } else if (watch && !(input.isFile() &&
+                                  (WarcReader.isWarc(input) ||
+                                   ArchiveReader.isArchive(input)))) {
+                watch(input.toPath(), scheduler, ui, threads);
+            } else {
+                // Index and viewforum pages are parsed before everything else
+                scheduler.startFirstPass();
+                read(input, scheduler, ui, threads);
+                scheduler.startSecondPass();
+                read(input, scheduler, ui, threads);
+            }
 
-                // Wait for threads to finish
-                es.shutdown();
-                boolean isDone = false;
-                while (!isDone) {
-                    try {
-                        isDone = es.awaitTermination(1, TimeUnit.DAYS);
-                    } catch (InterruptedException e) {}
-                }
-                
-                // Cleanup
-                idMappings.submitAllQueuedPosts(0, database);
+            // Wait for threads to finish
+            scheduler.awaitCompletion();
+            if (scheduler.getSubmitted() <= 0 && scheduler.getSkipped() <= 0) {
+                System.out.println("No files were found.");
+            }
+            if (scheduler.getSkipped() > 0) {
+                System.out.println("Skipped " + scheduler.getSkipped() +
+                                   " files that were parsed in an earlier " +
+                                   "run.");
+            }
+
+            // Cleanup
+            int queuedPosts = idMappings.getQueuedPostCount();
+            if (queuedPosts > 0) {
+                System.out.println("Submitting " + queuedPosts + " posts " +
+                                   "whose topics couldn't be found...");
+            }
+            idMappings.submitAllQueuedPosts(0, sink);
+            // Files are only recorded in the journal once their records have
+            // been written, so this must be done before it is closed
+            sink.flush();
+            if (writeBehind != null) {
+                writeBehind.finish();
+            }
+            ui.printSummary();
+            if (writeBehind != null) {
+                System.out.println(writeBehind);
+            }
+            if (counter != null) {
+                printThroughput(scheduler, counter,
+                                System.nanoTime() - startTime);
             }
         } catch (SQLException e) {
             System.err.println("SQL error: " + e.getLocalizedMessage());
+        } catch (IOException e) {
+            System.err.println("Couldn't open journal: " +
+                               e.getLocalizedMessage());
         }
     }
     
     /**
-     * Finds all files in a folder, including subfolders.
-     * @param directory The directory to find files in. If this is not a
-     * directory, it will be treated as a directory containing no files.
-     * @return a queue of {@link File} objects for all files in the directory
+     * Submits all files in a WARC file, an archive or a directory, including
+     * subdirectories, for parsing.
+     * @param input the file or directory to read
+     * @param scheduler a {@link ParseScheduler} to submit files to
+     * @param ui a {@link UserInterface} for error display
+     * @param threads the number of threads to use for walking subdirectories
      */
-    private static ArrayList<File> getFilesInDirectory(File directory) {
-        // Note: listFiles takes minutes to run if there are 100000s of files
-        File[] files = directory.listFiles();
-        ArrayList<File> result = new ArrayList<>(files.length);
-        for (File file : files) {
-            if (file.isDirectory()) {
-                result.addAll(getFilesInDirectory(file));
-            } else {
-                result.add(file);
-            }
+    private static void read(File input, ParseScheduler scheduler,
+                             UserInterface ui, int threads) {
+        if (input.isFile() && WarcReader.isWarc(input)) {
+            new WarcReader(scheduler, ui).read(input);
+        } else if (input.isFile() && ArchiveReader.isArchive(input)) {
+            new ArchiveReader(scheduler, ui).read(input);
+        } else {
+            new DirectoryWalker(scheduler, ui).walk(input.toPath(), threads);
         }
-        return result;
+    }
+    
+    /**
+     * Displays the results of a dry run.
+     * @param scheduler the {@link ParseScheduler} that was used
+     * @param counter the {@link CountingSink} that records were sent to
+     * @param nanoseconds the time the run took
+     */
+    private static void printThroughput(ParseScheduler scheduler,
+                                        CountingSink counter,
+                                        long nanoseconds) {
+        double seconds = Math.max(nanoseconds / 1e9, 1e-9);
+        double megabytes = scheduler.getSubmittedBytes() / (1024.0 * 1024.0);
+        System.out.println(counter);
+        System.out.println(String.format("Parsed %d pages (%.1f MB) in " +
+                "%.2f s: %.1f pages/s, %.1f posts/s, %.2f MB/s",
+                scheduler.getSubmitted(), megabytes, seconds,
+                scheduler.getSubmitted() / seconds,
+                counter.getPosts() / seconds, megabytes / seconds));
+    }
+    
+    /**
+     * Parses all files in a directory, and then keeps parsing files as they
+     * are written to it until the program is asked to exit (for instance by
+     * pressing Ctrl+C).
+     * @param directory the directory to watch
+     * @param scheduler a {@link ParseScheduler} to submit files to
+     * @param ui a {@link UserInterface} for progress display
+     * @param threads the number of threads to use for walking subdirectories
+     */
+    private static void watch(Path directory, ParseScheduler scheduler,
+                              UserInterface ui, int threads) {
+        final DirectoryWatcher watcher;
+        try {
+            watcher = new DirectoryWatcher(scheduler, ui);
+            // Register before walking so that no new files are missed
+            watcher.register(directory);
+        } catch (IOException e) {
+            System.err.println("Couldn't watch " + directory + ": " +
+                               e.getLocalizedMessage());
+            return;
+        }
+        DirectoryWalker walker = new DirectoryWalker(scheduler, ui);
+        scheduler.startFirstPass();
+        walker.walk(directory, threads);
+        scheduler.startSecondPass();
+        walker.walk(directory, threads);
+        
+        // Let the main thread finish its cleanup before the program exits
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override public void run() {
+                watcher.stop();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException e) {}
+            }
+        });
+        System.out.println("Watching for new files...");
+        watcher.watch();
     }
     
 }
@@ -0,0 +1,65 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.sql.SQLException;
+
+/**
+ * Receives the records that are parsed. Records don't have to be written
+ * before an insert method returns, so errors are reported to the
+ * {@link InsertCallback} of each record instead of being thrown.
+ * Implementations must be thread safe.
+ * @author JosJuice
+ */
+public interface RecordSink extends AutoCloseable {
+    
+    /**
+     * Creates the tables that records are inserted into.
+     * @throws SQLException if something goes wrong on the SQL side
+     */
+    void createTables() throws SQLException;
+    
+    /**
+     * Inserts a user.
+     * @param postUser the user to insert
+     * @param callback is told when the user has been written or has failed
+     */
+    void insert(PostUser postUser, InsertCallback callback);
+    
+    /**
+     * Inserts a post.
+     * @param post the post to insert
+     * @param topicId ID of the topic containing this post.
+     * @param callback is told when the post has been written or has failed
+     */
+    void insert(Post post, int topicId, InsertCallback callback);
+    
+    /**
+     * Inserts a topic.
+     * @param topic the topic to insert
+     * @param callback is told when the topic has been written or has failed
+     */
+    void insert(Topic topic, InsertCallback callback);
+    
+    /**
+     * Inserts a forum.
+     * @param forum the forum to insert
+     * @param callback is told when the forum has been written or has failed
+     */
+    void insert(Forum forum, InsertCallback callback);
+    
+    /**
+     * Inserts a category.
+     * @param category the category to insert
+     * @param callback is told when the category has been written or has
+     * failed
+     */
+    void insert(Category category, InsertCallback callback);
+    
+    /**
+     * Writes all records that have been inserted so far. The callbacks of
+     * those records have been called when this method returns.
+     */
+    void flush();
+    
+    @Override void close() throws SQLException;
+    
+}
@@ -0,0 +1,144 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.util.ArrayList;
+import java.util.Objects;
+import org.jsoup.nodes.Element;
+
+/**
+ * Compares the records that a {@link PageScanner} got from a page with the
+ * records that jsoup gets from the same page. Used for finding pages where
+ * the scanner and jsoup disagree.
+ * @author JosJuice
+ */
+final class ScannerVerifier {
+
+    private ScannerVerifier() {}
+
+    /**
+     * Compares the records of a viewtopic page.
+     * @param page the records from the scanner, which must have been scanned
+     * without a {@link UserCache}
+     * @param element the {@code #punviewtopic} element of the page
+     * @param dateParser A {@link DateParser} for parsing dates.
+     * @return a description of each difference (empty if there were none)
+     */
+    static ArrayList<String> compare(PageScanner.Viewtopic page,
+                                     Element element, DateParser dateParser) {
+        ArrayList<String> mismatches = new ArrayList<>();
+        compare("topic ID", page.getTopicId(),
+                ParseTask.findContainerId(element), mismatches);
+        // Posts that jsoup can't parse shouldn't be scanned either
+        ArrayList<String> expected = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        for (Element postElement : element.getElementsByClass("blockpost")) {
+            Post post = Post.parse(postElement, dateParser, null, errors);
+            if (post != null) {
+                expected.add(describe(post));
+            }
+        }
+        ArrayList<String> actual = new ArrayList<>();
+        for (Post post : page.getPosts()) {
+            actual.add(describe(post));
+        }
+        compare("post", actual, expected, mismatches);
+        return mismatches;
+    }
+
+    /**
+     * Compares the records of a viewforum page.
+     * @param page the records from the scanner
+     * @param element the {@code #punviewforum} element of the page
+     * @param dateParser A {@link DateParser} for parsing dates.
+     * @return a description of each difference (empty if there were none)
+     */
+    static ArrayList<String> compare(PageScanner.Viewforum page,
+                                     Element element, DateParser dateParser) {
+        ArrayList<String> mismatches = new ArrayList<>();
+        Integer forumId = ParseTask.findContainerId(element);
+        compare("forum ID", page.getForumId(), forumId, mismatches);
+        // Topics that jsoup can't parse shouldn't be scanned either
+        ArrayList<String> expected = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        if (forumId != null) {
+            for (Element row : element.getElementsByTag("tr")) {
+                if (!row.getElementsByClass("tclcon").isEmpty()) {
+                    Topic topic = Topic.parse(row, dateParser, forumId,
+                                              errors);
+                    if (topic != null) {
+                        expected.add(describe(topic));
+                    }
+                }
+            }
+        }
+        ArrayList<String> actual = new ArrayList<>();
+        for (Topic topic : page.getTopics()) {
+            actual.add(describe(topic));
+        }
+        compare("topic", actual, expected, mismatches);
+        return mismatches;
+    }
+
+    /**
+     * Compares two lists of record descriptions in order.
+     * @param what what kind of records the lists contain
+     * @param actual the records from the scanner
+     * @param expected the records from jsoup
+     * @param mismatches a list to add the differences to
+     */
+    private static void compare(String what, ArrayList<String> actual,
+                                ArrayList<String> expected,
+                                ArrayList<String> mismatches) {
+        if (actual.size() != expected.size()) {
+            mismatches.add("Scanner mismatch: got " + actual.size() + " " +
+                           what + "s, jsoup got " + expected.size());
+        }
+        for (int i = 0; i < Math.min(actual.size(), expected.size()); i++) {
+            compare(what + " " + i, actual.get(i), expected.get(i),
+                    mismatches);
+        }
+    }
+
+    private static void compare(String what, Object actual, Object expected,
+                                ArrayList<String> mismatches) {
+        if (!Objects.equals(actual, expected)) {
+            mismatches.add("Scanner mismatch in " + what + ": got " + actual +
+                           ", jsoup got " + expected);
+        }
+    }
+
+    /**
+     * @return all fields of a post and its user
+     */
+    private static String describe(Post post) {
+        PostUser user = post.getPostUser();
+        return "[id=" + post.getId() + ", posted=" + post.getPosted() +
+               ", hideSmilies=" + post.getHideSmilies() +
+               ", edited=" + post.getEdited() +
+               ", editedBy=" + post.getEditedBy() +
+               ", userId=" + user.getId() +
+               ", username=" + user.getUsername() +
+               ", title=" + user.getTitle() +
+               ", hasAvatar=" + user.getHasAvatar() +
+               ", signature=" + user.getSignature() +
+               ", message=" + post.getMessage() + "]";
+    }
+
+    /**
+     * @return all fields of a topic
+     */
+    private static String describe(Topic topic) {
+        return "[id=" + topic.getId() + ", subject=" + topic.getSubject() +
+               ", poster=" + topic.getPoster() +
+               ", posted=" + topic.getPosted() +
+               ", lastPosted=" + topic.getLastPosted() +
+               ", lastPostId=" + topic.getLastPostId() +
+               ", lastPoster=" + topic.getLastPoster() +
+               ", numViews=" + topic.getNumViews() +
+               ", numReplies=" + topic.getNumReplies() +
+               ", closed=" + topic.getClosed() +
+               ", sticky=" + topic.getSticky() +
+               ", movedTo=" + topic.getMovedTo() +
+               ", forumId=" + topic.getForumId() + "]";
+    }
+
+}
@@ -0,0 +1,44 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes equal strings share one instance, like {@link String#intern()}, but
+ * with a bounded size so that it can't fill up the memory. Usernames and user
+ * titles are repeated in every post, topic and forum they appear in, and many
+ * of those objects may be waiting in {@link IdMappings} at the same time.
+ * Thread safe.
+ * @author JosJuice
+ */
+public final class StringPool {
+    
+    /** The pool is emptied when it reaches this number of strings. */
+    private static final int MAX_SIZE = 128 * 1024;
+    /** Longer strings are unlikely to repeat and aren't pooled. */
+    private static final int MAX_LENGTH = 64;
+    
+    private static final ConcurrentHashMap<String, String> pool =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Gets the pooled instance of a string.
+     * @param string a string, or {@code null}
+     * @return a string equal to {@code string} (or {@code null})
+     */
+    public static String intern(String string) {
+        if (string == null || string.length() > MAX_LENGTH) {
+            return string;
+        }
+        String pooled = pool.get(string);
+        if (pooled != null) {
+            return pooled;
+        }
+        // Strings that already have been handed out stay valid
+        if (pool.size() >= MAX_SIZE) {
+            pool.clear();
+        }
+        pooled = pool.putIfAbsent(string, string);
+        return pooled != null ? pooled : string;
+    }
+    
+}
@@ -1,6 +1,8 @@
 package se.zeldaforumet.josjuice.punparse;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
@@ -11,35 +13,121 @@ import org.jsoup.nodes.TextNode;
  */
 public final class TextParser {
     
+    /** Returned by {@link #parseInt(String)} if the text isn't a number. */
+    public static final int NOT_A_NUMBER = Integer.MIN_VALUE;
+    
+    /** Buffers larger than this aren't kept for the next message. */
+    private static final int MAX_KEPT_CAPACITY = 1024 * 1024;
+    
+    private static final ThreadLocal<StringBuilder> builders =
+            new ThreadLocal<StringBuilder>() {
+        @Override protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+    
+    private static final ThreadLocal<ArrayDeque<Object>> stacks =
+            new ThreadLocal<ArrayDeque<Object>>() {
+        @Override protected ArrayDeque<Object> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+    
     /**
      * Converts a message (such as a post or signature) from HTML to BBCode.
      * @param element a {@code .postmsg} or {@code postsignature} element
      * @return the message in BBCode
      */
     public static String parseMessage(Element element) {
-        return parseMessage(new StringBuilder(), element).toString();
+        return parsePostMessage(element).getText();
+    }
+    
+    /**
+     * Converts a post message from HTML to BBCode like
+     * {@link #parseMessage(Element)}, and finds out whether it contains
+     * smilies while doing so, so that the message only is walked once.
+     * @param element a {@code .postmsg} element
+     * @return the message in BBCode, and whether it contains smilies
+     */
+    public static Message parsePostMessage(Element element) {
+        StringBuilder sb = builders.get();
+        sb.setLength(0);
+        boolean hasSmilies;
+        try {
+            hasSmilies = parseMessage(element, sb);
+        } catch (IOException e) {
+            throw new AssertionError(e);    // StringBuilder never throws
+        }
+        String result = sb.toString();
+        if (sb.capacity() > MAX_KEPT_CAPACITY) {
+            builders.remove();
+        }
+        return new Message(result, hasSmilies);
     }
     
     /**
-     * Converts a message or a part of a message from HTML to BBCode.
-     * @param sb a StringBuilder to add the converted text to
-     * @param elem a {@code .postmsg} or {@code postsignature} element,
-     * or a part of one
-     * @return the StringBuilder that was used as a parameter
+     * Converts a message (such as a post or signature) from HTML to BBCode.
+     * The message is walked using an explicit stack instead of recursion, so
+     * deeply nested quotes can't overflow the call stack.
+     * @param element a {@code .postmsg} or {@code postsignature} element
+     * @param out where to write the message in BBCode
+     * @return {@code true} if at least one smiley was written
+     * @throws IOException if {@code out} throws an {@code IOException}
      */
-    private static StringBuilder parseMessage(StringBuilder sb, Element elem) {
+    public static boolean parseMessage(Element element, Appendable out)
+            throws IOException {
+        // Contains nodes that haven't been converted yet, and strings that
+        // should be written when the children of an element have been written
+        ArrayDeque<Object> stack = stacks.get();
+        boolean hasSmilies = false;
+        try {
+            stack.push(element);
+            while (!stack.isEmpty()) {
+                Object next = stack.pop();
+                if (next instanceof String) {
+                    out.append((String) next);
+                } else if (next instanceof TextNode) {
+                    out.append(((TextNode) next).text());
+                } else if (next instanceof Element) {
+                    Element elem = (Element) next;
+                    if (open(elem, out, stack)) {
+                        List<Node> children = elem.childNodes();
+                        for (int i = children.size() - 1; i >= 0; i--) {
+                            stack.push(children.get(i));
+                        }
+                    } else if (isSmiley(elem)) {
+                        hasSmilies = true;
+                    }
+                }
+            }
+        } finally {
+            stack.clear();
+        }
+        return hasSmilies;
+    }
+    
+    /**
+     * Writes the BBCode that an element starts with, and pushes the BBCode that
+     * it ends with onto the stack.
+     * @param elem an element in a {@code .postmsg} or {@code postsignature}
+     * element
+     * @param out where to write the start of the element
+     * @param stack the stack to push the end of the element onto
+     * @return {@code true} if the children of the element should be converted
+     * @throws IOException if {@code out} throws an {@code IOException}
+     */
+    private static boolean open(Element elem, Appendable out,
+                                ArrayDeque<Object> stack) throws IOException {
         // TODO more types of BBCode
         switch (elem.tagName()) {
             case "a":
-                sb.append("[url=").append(elem.attr("href")).append("]");
-                parseMessage(sb, elem.childNodes());
-                sb.append("[/url]");
-                break;
+                out.append("[url=").append(elem.attr("href")).append("]");
+                stack.push("[/url]");
+                return true;
             case "b":
-                sb.append("[b]");
-                parseMessage(sb, elem.childNodes());
-                sb.append("[/b]");
-                break;
+                out.append("[b]");
+                stack.push("[/b]");
+                return true;
             case "blockquote":
                 String quoteAuthor = null;
                 Element incqbox = elem.children().first();
@@ -49,90 +137,98 @@ public final class TextParser {
                         quoteAuthor = h4.text();
                     }
                 }
-                sb.append("[quote");
+                out.append("[quote");
                 if (quoteAuthor != null) {
-                    sb.append("=");
-                    sb.append(quoteAuthor);     // TODO get rid of " wrote:"
+                    out.append("=");
+                    out.append(quoteAuthor);    // TODO get rid of " wrote:"
                 }
-                sb.append("]");
-                parseMessage(sb, elem.childNodes());
-                sb.append("[/quote]");
-                break;
+                out.append("]");
+                stack.push("[/quote]");
+                return true;
             case "br":
-                sb.append('\n');
-                break;
+                out.append('\n');
+                return false;
             case "div":
                 if (elem.hasClass("codebox")) {
-                    sb.append("[code]");
-                    parseMessage(sb, elem.childNodes());
-                    sb.append("[/code]");
-                } else {
-                    parseMessage(sb, elem.childNodes());
+                    out.append("[code]");
+                    stack.push("[/code]");
                 }
-                break;
+                return true;
             case "h4":
                 // Handled by case "blockquote"
-                break;
+                return false;
             case "i":
-                sb.append("[i]");
-                parseMessage(sb, elem.childNodes());
-                sb.append("[/i]");
-                break;
+                out.append("[i]");
+                stack.push("[/i]");
+                return true;
             case "img":
-                if (elem.hasClass("postimg") || elem.hasClass("sigimage")) {
-                    sb.append("[img]");
-                    sb.append(elem.attr("src"));
-                    sb.append("[/img]");
-                } else { // Smiley
+                if (isSmiley(elem)) {
                     // TODO in vanilla PunBB this is a filename, not smiley text
-                    sb.append(elem.attr("alt"));
+                    out.append(elem.attr("alt"));
+                } else {
+                    out.append("[img]");
+                    out.append(elem.attr("src"));
+                    out.append("[/img]");
                 }
-                break;
+                return false;
             case "span":
                 if (elem.hasClass("bbu")) {
-                    sb.append("[u]");
-                    parseMessage(sb, elem.childNodes());
-                    sb.append("[/u]");
-                } else {
-                    parseMessage(sb, elem.childNodes());
+                    out.append("[u]");
+                    stack.push("[/u]");
                 }
-                break;
+                return true;
             default:
-                parseMessage(sb, elem.childNodes());
-                break;
+                return true;
         }
-        return sb;
     }
     
     /**
-     * Converts parts of a message from HTML to BBCode.
-     * @param sb a StringBuilder to add the converted text to
-     * @param nodes parts of {@code .postmsg} or {@code postsignature} elements
-     * @return the StringBuilder that was used as a parameter
+     * @param elem an element in a {@code .postmsg} or {@code postsignature}
+     * element
+     * @return {@code true} if the element is a smiley, which is any image that
+     * wasn't posted with {@code [img]}
      */
-    private static StringBuilder parseMessage(StringBuilder sb,
-                                              Collection<Node> nodes) {
-        for (Node node : nodes) {
-            if (node instanceof TextNode) {
-                sb.append(((TextNode) node).text());
-            } else if (node instanceof Element) {
-                parseMessage(sb, (Element) node);
-            }
-        }
-        return sb;
+    private static boolean isSmiley(Element elem) {
+        return elem.tagName().equals("img") && !elem.hasClass("postimg") &&
+               !elem.hasClass("sigimage");
     }
     
     /**
-     * @param element a {@code .postmsg} or {@code postsignature} element
-     * @return {@code true} if there is at least one smiley in the element
+     * Parses a decimal integer like {@link Integer#parseInt(String)}, but
+     * returns {@link #NOT_A_NUMBER} instead of throwing an exception if the
+     * text isn't a valid number.
+     * @param text the text to parse, or {@code null}
+     * @return the number, or {@link #NOT_A_NUMBER} if the text is
+     * {@code null}, isn't a number or doesn't fit in an {@code int}
      */
-    public static boolean containsSmilies(Element element) {
-        for (Element img : element.getElementsByTag("img")) {
-            if (!img.hasClass("postimg")) {
-                return true;
+    public static int parseInt(String text) {
+        if (text == null || text.isEmpty()) {
+            return NOT_A_NUMBER;
+        }
+        int start = 0;
+        boolean isNegative = false;
+        if (text.charAt(0) == '-' || text.charAt(0) == '+') {
+            isNegative = text.charAt(0) == '-';
+            start = 1;
+            if (text.length() == 1) {
+                return NOT_A_NUMBER;
+            }
+        }
+        long result = 0;
+        for (int i = start; i < text.length(); i++) {
+            int digit = Character.digit(text.charAt(i), 10);
+            if (digit < 0) {
+                return NOT_A_NUMBER;
+            }
+            result = result * 10 + digit;
+            if (result > -(long) Integer.MIN_VALUE) {
+                return NOT_A_NUMBER;
             }
         }
-        return false;
+        if (isNegative) {
+            result = -result;
+        }
+        return result > Integer.MAX_VALUE ? NOT_A_NUMBER : (int) result;
     }
     
     /**
@@ -164,4 +260,34 @@ public final class TextParser {
         return null;            // If this is reached, the field was not found
     }
     
+    /**
+     * A message that has been converted to BBCode by
+     * {@link #parsePostMessage(Element)}.
+     */
+    public static final class Message {
+        
+        private final String text;
+        private final boolean hasSmilies;
+        
+        private Message(String text, boolean hasSmilies) {
+            this.text = text;
+            this.hasSmilies = hasSmilies;
+        }
+        
+        /**
+         * @return the message in BBCode
+         */
+        public String getText() {
+            return text;
+        }
+        
+        /**
+         * @return {@code true} if there is at least one smiley in the message
+         */
+        public boolean hasSmilies() {
+            return hasSmilies;
+        }
+        
+    }
+    
 }
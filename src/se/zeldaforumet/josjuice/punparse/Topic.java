@@ -1,7 +1,10 @@
 package se.zeldaforumet.josjuice.punparse;
 
-import java.text.ParseException;
+import java.util.Collection;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 
 /**
  * Represents a record in the PunBB 'topics' table. Immutable.
@@ -9,6 +12,9 @@ import org.jsoup.nodes.Element;
  */
 public final class Topic {
     
+    /** Learned from the first topic that has to be searched. */
+    private static final ExtractionPlan plan = new ExtractionPlan();
+    
     private final boolean isMoved;
     
     // All of the following variables correspond to database columns.
@@ -27,136 +33,171 @@ public final class Topic {
     private final int forumId;
     
     /**
-     * Constructs a {@code Topic}.
+     * Parses a topic. If required parts of HTML are missing, an error is added
+     * to {@code errors} instead of throwing an exception.
      * @param element An HTML {@code tr} element from {@code viewforum.php}.
      * @param dateParser A {@link DateParser} for parsing dates.
      * @param forumId The ID of the forum that contains this topic.
-     * @throws IllegalArgumentException if required parts of HTML are missing
+     * @param errors A list to add an error to if the topic can't be parsed.
+     * @return the topic, or {@code null} if it can't be parsed
      */
-    public Topic(Element element, DateParser dateParser, int forumId)
-            throws IllegalArgumentException {
-        try {
-            // Find the main text
-            Element tclcon = element.getElementsByClass("tclcon").first();
-            // Find the link to the topic
-            Element topicLink = tclcon.getElementsByTag("a").first();
-            // Find topic ID
-            String topicUrl = topicLink.attr("href");
-            id = Integer.parseInt(TextParser.getQueryValue(topicUrl, "id"));
-            // Find topic subject
-            subject = topicLink.text();
-            
-            try {
-                // Find poster username
-                poster = getPoster(tclcon); 
-            } catch (NullPointerException | IndexOutOfBoundsException e) {
-                throw new IllegalArgumentException("Couldn't get poster " +
-                                                   "of topic " + id, e);
-            }
-            
-            closed = element.hasClass("iclosed");
-            sticky = element.hasClass("isticky");
-        } catch (NullPointerException | NumberFormatException e) {
-            throw new IllegalArgumentException("Couldn't get topic ID.", e);
+    public static Topic parse(Element element, DateParser dateParser,
+                              int forumId, Collection<String> errors) {
+        if (element == null) {
+            return InputErrors.add(errors, "Couldn't get topic ID.");
         }
+        Extractor fields = Extractor.extract(element);
         
-        try {
-            // Find number of replies (in .tc2)
-            Element tc2 = element.getElementsByClass("tc2").first();
-            if (tc2.hasText() && !tc2.text().equals("\u00A0")) {
-                isMoved = false;
-                movedTo = 0;
-                numReplies = Integer.parseInt(tc2.text());
-            } else {
-                // If .tc2 is empty, this is a moved topic
-                isMoved = true;
-                movedTo = id;
-                numReplies = 0;
-            }
-        } catch (NullPointerException | NumberFormatException e) {
-            throw new IllegalArgumentException("Couldn't get number of " +
-                                               "replies of topic " + id, e);
+        // Find topic ID from the link to the topic
+        if (fields.topicLink == null) {
+            return InputErrors.add(errors, "Couldn't get topic ID.");
         }
+        int id = TextParser.parseInt(TextParser.getQueryValue(
+                fields.topicLink.attr("href"), "id"));
+        if (id == TextParser.NOT_A_NUMBER) {
+            return InputErrors.add(errors, "Couldn't get topic ID.");
+        }
+        // Find topic subject
+        String subject = fields.topicLink.text();
         
-        if (isMoved) {
-            numViews = 0;
-        } else {
-            try {
-                // Find number of replies (in .tc3)
-                numViews = Integer.parseInt(element.getElementsByClass("tc3").
-                                            first().text());
-            } catch (NullPointerException | NumberFormatException e) {
-                throw new IllegalArgumentException("Couldn't get number of " +
-                                                   "views of topic " + id, e);
-            }
+        // Find poster username
+        String poster = getPoster(fields.tclconByuser, fields.topicLink);
+        if (poster == null) {
+            return InputErrors.add(errors, "Couldn't get poster of topic " +
+                                           id);
+        }
+        
+        boolean closed = element.hasClass("iclosed");
+        boolean sticky = element.hasClass("isticky");
+        
+        // Find number of replies (in .tc2)
+        Element tc2 = fields.tc2;
+        if (tc2 == null) {
+            return InputErrors.add(errors, "Couldn't get number of replies " +
+                                           "of topic " + id);
+        }
+        if (!tc2.hasText() || tc2.text().equals("\u00A0")) {
+            // If .tc2 is empty, this is a moved topic
+            return new Topic(id, subject, poster, closed, sticky, true, 0, 0,
+                             0, 0, null, forumId);
+        }
+        int numReplies = TextParser.parseInt(tc2.text());
+        if (numReplies == TextParser.NOT_A_NUMBER) {
+            return InputErrors.add(errors, "Couldn't get number of replies " +
+                                           "of topic " + id);
+        }
+        
+        // Find number of views (in .tc3)
+        int numViews = fields.tc3 == null ? TextParser.NOT_A_NUMBER
+                : TextParser.parseInt(fields.tc3.text());
+        if (numViews == TextParser.NOT_A_NUMBER) {
+            return InputErrors.add(errors, "Couldn't get number of views of " +
+                                           "topic " + id);
         }
         
+        // Find the link to the recent post, and the post ID
+        Element postLink = fields.tcrLink;
+        int lastPostId = postLink == null ? TextParser.NOT_A_NUMBER
+                : TextParser.parseInt(TextParser.getQueryValue(
+                        postLink.attr("href"), "pid"));
+        if (lastPostId == TextParser.NOT_A_NUMBER) {
+            return InputErrors.add(errors, "Couldn't get ID of last post in " +
+                                           "topic " + id);
+        }
+        // Find last date posted
+        String date = postLink.text();
+        long lastPosted = dateParser.tryParse(date);
+        if (lastPosted == DateParser.INVALID_DATE) {
+            return InputErrors.add(errors, DateParser.getErrorMessage(date));
+        }
+        // Find poster username
+        String lastPoster = getPoster(fields.tcrByuser, postLink);
+        if (lastPoster == null) {
+            return InputErrors.add(errors, "Couldn't get last poster in " +
+                                           "topic " + id);
+        }
+        
+        return new Topic(id, subject, poster, closed, sticky, false,
+                         numReplies, numViews, lastPostId, lastPosted,
+                         lastPoster, forumId);
+    }
+    
+    /**
+     * Constructs a {@code Topic} from values that already have been found, for
+     * instance by {@link #parse} or a {@link PageScanner}.
+     * @param id Topic ID.
+     * @param subject Topic subject.
+     * @param poster Username of the poster.
+     * @param closed {@code true} if the topic is closed.
+     * @param sticky {@code true} if the topic is sticky.
+     * @param isMoved {@code true} if the topic has been moved to another
+     * forum. The following values are ignored for moved topics.
+     * @param numReplies Number of replies.
+     * @param numViews Number of views.
+     * @param lastPostId ID of the last post.
+     * @param lastPosted Time of the last post (Unix timestamp).
+     * @param lastPoster Username of the last poster.
+     * @param forumId The ID of the forum that contains this topic.
+     */
+    Topic(int id, String subject, String poster, boolean closed,
+          boolean sticky, boolean isMoved, int numReplies, int numViews,
+          int lastPostId, long lastPosted, String lastPoster, int forumId) {
+        this.id = id;
+        this.subject = subject;
+        this.poster = poster;
+        this.closed = closed;
+        this.sticky = sticky;
+        this.isMoved = isMoved;
         if (isMoved) {
-            lastPosted = 0;
-            lastPostId = 0;
-            lastPoster = null;
+            this.movedTo = id;
+            this.numReplies = 0;
+            this.numViews = 0;
+            this.lastPostId = 0;
+            this.lastPosted = 0;
+            this.lastPoster = null;
         } else {
-            try {
-                // Find information about recent post
-                Element tcr = element.getElementsByClass("tcr").first();
-                // Find the link to the post
-                Element postLink = tcr.getElementsByTag("a").first();
-                // Find post ID
-                String postUrl = postLink.attr("href");
-                lastPostId = Integer.parseInt(
-                        TextParser.getQueryValue(postUrl, "pid"));
-                // Find last date posted
-                lastPosted = dateParser.parse(postLink.text());
-                
-                try {
-                    // Find poster username
-                    lastPoster = getPoster(tcr);
-                } catch (NullPointerException | IndexOutOfBoundsException e) {
-                    throw new IllegalArgumentException("Couldn't get last " +
-                                                       "poster in topic " + id,
-                                                       e);
-                }
-            } catch (NullPointerException | NumberFormatException e) {
-                throw new IllegalArgumentException("Couldn't get ID of last " +
-                                                   "post in topic " + id, e);
-            } catch (ParseException e) {
-                throw new IllegalArgumentException(e.getLocalizedMessage());
-            }
+            this.movedTo = 0;
+            this.numReplies = numReplies;
+            this.numViews = numViews;
+            this.lastPostId = lastPostId;
+            this.lastPosted = lastPosted;
+            this.lastPoster = lastPoster;
         }
-        
         // TODO find the actual time the topic was posted
-        posted = id;
-        
-        // Set forum ID
+        this.posted = id;
         this.forumId = forumId;
     }
     
     /**
      * Gets the username of the poster of a topic or the last poster in a topic.
-     * @param element An element from {@code viewtopic.php} containing a link
-     * to the topic/post and the username. This is typically a {@code td}
-     * element, but {@code .intd} and {@code .tclcon} can also be used. The
-     * username of the poster must be preceded by a non-breaking space.
-     * @return username of poster
-     * @throws NullPointerException if the poster cannot be found
-     * @throws IndexOutOfBoundsException if no non-breaking space was found
+     * @param byuser The {@code .byuser} element in the {@code .tclcon} or
+     * {@code .tcr} element containing the username, or {@code null} if there
+     * is none.
+     * @param link The link to the topic/post. If there is no {@code .byuser}
+     * element, the username must follow this link, preceded by a non-breaking
+     * space.
+     * @return username of poster, or {@code null} if it cannot be found
      */
-    private static String getPoster(Element element)
-            throws NullPointerException, IndexOutOfBoundsException {
-        String poster;
-        String delimiter;
-        
-        Element byuser = element.getElementsByClass("byuser").first();
+    private static String getPoster(Element byuser, Element link) {
         if (byuser != null) {
-            poster = byuser.text();
-            delimiter = "\u00A0";
-        } else {
-            poster = element.getElementsByTag("a").first().
-                     nextSibling().toString();
-            delimiter = "&nbsp;";
+            return getPoster(byuser.text(), "\u00A0");
         }
-        
-        return poster.substring(poster.indexOf(delimiter) + delimiter.length());
+        Node next = link.nextSibling();
+        return next == null ? null : getPoster(next.toString(), "&nbsp;");
+    }
+    
+    /**
+     * Gets the username of a poster from the text that contains it.
+     * @param text the text, for instance {@code by&nbsp;username}
+     * @param delimiter the string that the username follows
+     * @return username of poster, or {@code null} if the text is too short
+     */
+    static String getPoster(String text, String delimiter) {
+        int start = text.indexOf(delimiter) + delimiter.length();
+        if (start > text.length()) {
+            return null;
+        }
+        return StringPool.intern(text.substring(start));
     }
     
     /**
@@ -261,4 +302,93 @@ public final class Topic {
         return forumId;
     }
     
+    /**
+     * Finds all elements that topic fields are read from in one traversal of a
+     * {@code tr} element.
+     */
+    private static final class Extractor implements NodeVisitor {
+        
+        private Element tclcon = null;
+        private boolean isInTclcon = false;
+        private Element topicLink = null;
+        private Element tclconByuser = null;
+        private Element tc2 = null;
+        private Element tc3 = null;
+        private Element tcr = null;
+        private boolean isInTcr = false;
+        private Element tcrLink = null;
+        private Element tcrByuser = null;
+        
+        /**
+         * Finds the fields of a topic by following the {@link ExtractionPlan}
+         * of topics. If the plan doesn't match, the topic is searched in one
+         * traversal instead, and the plan is learned from it.
+         * @param element a {@code tr} element
+         * @return an {@code Extractor} with the fields of the topic
+         */
+        private static Extractor extract(Element element) {
+            Extractor fields = new Extractor();
+            Element[] planned = plan.follow(element);
+            if (planned != null) {
+                fields.tclcon = planned[0];
+                fields.topicLink = planned[1];
+                fields.tc2 = planned[2];
+                fields.tc3 = planned[3];
+                fields.tcr = planned[4];
+                // These may be missing, but are in small cells
+                fields.tclconByuser =
+                        fields.tclcon.getElementsByClass("byuser").first();
+                fields.tcrLink = fields.tcr.getElementsByTag("a").first();
+                fields.tcrByuser =
+                        fields.tcr.getElementsByClass("byuser").first();
+            } else {
+                new NodeTraversor(fields).traverse(element);
+                plan.learn(element, fields.tclcon, fields.topicLink,
+                           fields.tc2, fields.tc3, fields.tcr);
+            }
+            return fields;
+        }
+        
+        @Override public void head(Node node, int depth) {
+            if (!(node instanceof Element)) {
+                return;
+            }
+            Element element = (Element) node;
+            if (element.tagName().equals("a")) {
+                if (isInTclcon && topicLink == null) {
+                    topicLink = element;
+                } else if (isInTcr && tcrLink == null) {
+                    tcrLink = element;
+                }
+            }
+            if (element.hasClass("byuser")) {
+                if (isInTclcon && tclconByuser == null) {
+                    tclconByuser = element;
+                } else if (isInTcr && tcrByuser == null) {
+                    tcrByuser = element;
+                }
+            }
+            if (tclcon == null && element.hasClass("tclcon")) {
+                tclcon = element;
+                isInTclcon = true;
+            } else if (tc2 == null && element.hasClass("tc2")) {
+                tc2 = element;
+            } else if (tc3 == null && element.hasClass("tc3")) {
+                tc3 = element;
+            } else if (tcr == null && element.hasClass("tcr")) {
+                tcr = element;
+                isInTcr = true;
+            }
+        }
+        
+        @Override public void tail(Node node, int depth) {
+            if (node == tclcon) {
+                isInTclcon = false;
+            } else if (node == tcr) {
+                isInTcr = false;
+            }
+        }
+        
+    }
+    
 }
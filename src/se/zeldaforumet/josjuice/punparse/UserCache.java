@@ -0,0 +1,47 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which users have been sent to the database during this run. Users
+ * are inserted with {@code INSERT IGNORE}, so only the first row for each user
+ * ID has any effect, and the signatures of users that already have been sent
+ * don't need to be parsed again. Thread safe.
+ * @author JosJuice
+ */
+public final class UserCache {
+    
+    private final Set<Integer> seenUsers = Collections.newSetFromMap(
+            new ConcurrentHashMap<Integer, Boolean>());
+    
+    /**
+     * Marks a user as seen.
+     * @param id the user ID
+     * @return {@code true} if the user hasn't been seen before and should be
+     * sent to the database, {@code false} if it already has been sent
+     */
+    public boolean add(int id) {
+        return seenUsers.add(id);
+    }
+    
+    /**
+     * Checks whether a user has been seen, without marking it as seen.
+     * @param id the user ID
+     * @return {@code true} if the user already has been sent to the database
+     */
+    public boolean contains(int id) {
+        return seenUsers.contains(id);
+    }
+    
+    /**
+     * Marks a user as not seen, for instance because sending it to the
+     * database failed, so that it will be sent again the next time it is seen.
+     * @param id the user ID
+     */
+    public void remove(int id) {
+        seenUsers.remove(id);
+    }
+    
+}
@@ -11,6 +11,15 @@ public final class UserInterface {
     
     private int progress = 0;
     private int goal = 0;
+    private int duplicates = 0;
+    private int irrelevant = 0;
+    private int freshnessCount = 0;
+    private long freshnessTotal = 0;
+    private long freshnessMax = 0;
+    private int scanned = 0;
+    private int scanFallbacks = 0;
+    private int verified = 0;
+    private int mismatches = 0;
     
     /**
      * Creates a {@code UserInterface}. The goal and progress will start at 0.
@@ -74,6 +83,71 @@ public final class UserInterface {
                            progress + "/" + goal + ": " + name);
     }
     
+    /**
+     * Adds 1 to the progress for an item that was skipped because it is an
+     * exact duplicate of an item that already has been processed.
+     * @param name A way of identifying the skipped item. This will be
+     * displayed to the user.
+     */
+    public synchronized void addSkippedDuplicate(String name) {
+        progress++;
+        duplicates++;
+        System.out.println("Skipped duplicate " + progress + "/" + goal + ": " +
+                           name);
+    }
+    
+    /**
+     * Adds 1 to the progress for an item that was skipped because it doesn't
+     * contain anything that can be parsed.
+     * @param name A way of identifying the skipped item. This will be
+     * displayed to the user.
+     */
+    public synchronized void addSkippedIrrelevant(String name) {
+        progress++;
+        irrelevant++;
+        System.out.println("Skipped irrelevant " + progress + "/" + goal +
+                           ": " + name);
+    }
+    
+    /**
+     * Displays the freshness latency of an item, that is, the time from when
+     * it was written to when its data had been written to the database.
+     * @param name A way of identifying the item. This will be displayed to the
+     * user.
+     * @param latency the freshness latency in milliseconds
+     */
+    public synchronized void addFreshness(String name, long latency) {
+        freshnessCount++;
+        freshnessTotal += latency;
+        freshnessMax = Math.max(freshnessMax, latency);
+        System.out.println("Freshness latency " + latency + " ms: " + name);
+    }
+    
+    /**
+     * Counts a page that was given to the {@link PageScanner}.
+     * @param isFallback {@code true} if the scanner couldn't handle the page
+     * and it was parsed with jsoup instead
+     */
+    public synchronized void addScannedPage(boolean isFallback) {
+        if (isFallback) {
+            scanFallbacks++;
+        } else {
+            scanned++;
+        }
+    }
+    
+    /**
+     * Counts a page whose records from the {@link PageScanner} have been
+     * compared with the records from jsoup.
+     * @param isMatching {@code true} if all records were the same
+     */
+    public synchronized void addVerifiedPage(boolean isMatching) {
+        verified++;
+        if (!isMatching) {
+            mismatches++;
+        }
+    }
+    
     /**
      * Adds an amount to the goal.
      * @param amount the amount to add
@@ -82,6 +156,30 @@ public final class UserInterface {
         goal += amount;
     }
     
+    /**
+     * Displays a summary of everything that has been processed.
+     */
+    public synchronized void printSummary() {
+        System.out.println("Processed " + progress + " items, of which " +
+                           duplicates + " were skipped as duplicates and " +
+                           irrelevant + " were skipped as irrelevant.");
+        if (freshnessCount > 0) {
+            System.out.println("Average freshness latency was " +
+                               freshnessTotal / freshnessCount + " ms " +
+                               "(maximum " + freshnessMax + " ms).");
+        }
+        if (scanned > 0 || scanFallbacks > 0) {
+            System.out.println("The scanner handled " + scanned + " pages " +
+                               "and fell back to jsoup for " + scanFallbacks +
+                               ".");
+        }
+        if (verified > 0) {
+            System.out.println("Verified " + verified + " scanned pages, of " +
+                               "which " + mismatches + " differed from " +
+                               "jsoup.");
+        }
+    }
+    
     /**
      * Displays a message to the user.
      * @param message the message to display
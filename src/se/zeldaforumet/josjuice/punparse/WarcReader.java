@@ -0,0 +1,369 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads HTML responses out of WARC files, as written by web crawlers, and
+ * submits them to a {@link ParseScheduler}. The WARC data is read as a stream,
+ * so it can come from standard input, and only the records that are waiting to
+ * be parsed are kept in memory. Thread safe.
+ * @author JosJuice
+ */
+public final class WarcReader {
+
+    /** Records larger than this are skipped to keep memory use bounded. */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    /** Header lines longer than this are treated as invalid. */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final ParseScheduler scheduler;
+    private final UserInterface ui;
+
+    /**
+     * Creates a {@code WarcReader}.
+     * @param scheduler A {@link ParseScheduler} to submit responses to.
+     * @param ui A {@link UserInterface} for error display, or {@code null}.
+     */
+    public WarcReader(ParseScheduler scheduler, UserInterface ui) {
+        this.scheduler = scheduler;
+        this.ui = ui;
+    }
+
+    /**
+     * @param file a file that may be a WARC file
+     * @return {@code true} if the file name ends with {@code .warc} or
+     * {@code .warc.gz}
+     */
+    public static boolean isWarc(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".warc") || name.endsWith(".warc.gz");
+    }
+
+    /**
+     * Submits all HTML responses in a WARC file for parsing.
+     * @param warc a {@code .warc} or {@code .warc.gz} file
+     */
+    public void read(File warc) {
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(warc))) {
+            if (warc.getName().toLowerCase().endsWith(".gz")) {
+                // readLine reads one byte at a time, so don't let every one
+                // of those reads go to the decompressor
+                read(new BufferedInputStream(new GZIPInputStream(in)));
+            } else {
+                read(in);
+            }
+        } catch (IOException e) {
+            if (ui != null) {
+                ui.printError("Couldn't read WARC file " + warc.getName() +
+                              ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Submits all HTML responses in a stream of WARC records for parsing. The
+     * stream is read until it ends, but it isn't closed.
+     * @param in uncompressed WARC records, for instance {@link System#in}
+     * @throws IOException if the stream can't be read or isn't valid WARC
+     */
+    public void read(InputStream in) throws IOException {
+        String versionLine;
+        while ((versionLine = readLine(in)) != null) {
+            if (versionLine.isEmpty()) {
+                continue;       // Records are followed by empty lines
+            }
+            if (!versionLine.startsWith("WARC/")) {
+                throw new IOException("Invalid WARC record: " + versionLine);
+            }
+
+            String type = null;
+            String uri = null;
+            String contentType = null;
+            long length = -1;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("WARC-Type")) {
+                    type = value;
+                } else if (name.equalsIgnoreCase("WARC-Target-URI")) {
+                    uri = value;
+                } else if (name.equalsIgnoreCase("Content-Type")) {
+                    contentType = value;
+                } else if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        length = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length: " +
+                                              value, e);
+                    }
+                }
+            }
+            if (length < 0) {
+                throw new IOException("WARC record without Content-Length");
+            }
+
+            if (uri == null || scheduler.isSkipped(uri)) {
+                skipFully(in, length);
+            } else if (length > MAX_RECORD_SIZE) {
+                if (ui != null && scheduler.isLastPass()) {
+                    ui.printError("Skipped WARC record for " + uri +
+                                  " because it is too large.");
+                }
+                skipFully(in, length);
+            } else if ("response".equals(type) && contentType != null &&
+                       contentType.startsWith("application/http")) {
+                readResponse(uri, in, length);
+            } else if (("response".equals(type) || "resource".equals(type)) &&
+                       contentType != null &&
+                       contentType.startsWith("text/html")) {
+                scheduler.submit(uri, readFully(in, (int) length));
+            } else {
+                skipFully(in, length);
+            }
+        }
+    }
+
+    /**
+     * Reads the block of a WARC response record containing an HTTP response,
+     * and submits the body if it's HTML.
+     * @param uri the URI the response was for
+     * @param in stream positioned at the start of the block
+     * @param length the length of the block
+     * @throws IOException if the stream can't be read
+     */
+    private void readResponse(String uri, InputStream in, long length)
+            throws IOException {
+        // The headers are read through a stream that ends with the block, so
+        // that a response without an empty line after the headers can't make
+        // reading continue into the next record
+        BlockInputStream block = new BlockInputStream(in, length);
+        boolean isOk;
+        boolean hasBody;
+        boolean isHtml = true;      // If there's no Content-Type, try to parse
+        boolean isChunked = false;
+        boolean isGzipped = false;
+        try {
+            String statusLine = readLine(block);
+            isOk = statusLine != null && statusLine.matches("HTTP/\\S+ 2.*");
+            String line;
+            while ((line = readLine(block)) != null && !line.isEmpty()) {
+                String lowerCaseLine = line.toLowerCase();
+                if (lowerCaseLine.startsWith("content-type:")) {
+                    isHtml = lowerCaseLine.contains("html");
+                } else if (lowerCaseLine.startsWith("transfer-encoding:")) {
+                    isChunked = lowerCaseLine.contains("chunked");
+                } else if (lowerCaseLine.startsWith("content-encoding:")) {
+                    isGzipped = lowerCaseLine.contains("gzip");
+                }
+            }
+            // Without an empty line, the headers go on to the end of the block
+            hasBody = line != null;
+        } catch (IOException e) {
+            // Invalid headers only make this record invalid. If the stream
+            // can't be read, skipping the rest of the block fails as well
+            if (ui != null && scheduler.isLastPass()) {
+                ui.printError("Couldn't read HTTP headers for " + uri + ": " +
+                              e.getLocalizedMessage());
+            }
+            skipFully(in, length - block.getCount());
+            return;
+        }
+
+        long bodyLength = length - block.getCount();
+        if (!isOk || !isHtml || !hasBody) {
+            skipFully(in, bodyLength);
+            return;
+        }
+        byte[] body = readFully(in, (int) bodyLength);
+        try {
+            if (isChunked) {
+                body = dechunk(body);
+            }
+            if (isGzipped) {
+                body = gunzip(body);
+            }
+        } catch (IOException e) {
+            if (ui != null) {
+                ui.printError("Couldn't decode response body for " + uri +
+                              ": " + e.getLocalizedMessage());
+            }
+            return;
+        }
+        scheduler.submit(uri, body);
+    }
+
+    /**
+     * Decodes an HTTP body that uses chunked transfer encoding.
+     * @param body the encoded body
+     * @return the decoded body
+     * @throws IOException if the body isn't validly encoded
+     */
+    private static byte[] dechunk(byte[] body) throws IOException {
+        InputStream in = new ByteArrayInputStream(body);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        String sizeLine;
+        while ((sizeLine = readLine(in)) != null) {
+            int extension = sizeLine.indexOf(';');
+            if (extension != -1) {
+                sizeLine = sizeLine.substring(0, extension);
+            }
+            int size;
+            try {
+                size = Integer.parseInt(sizeLine.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + sizeLine, e);
+            }
+            if (size == 0) {
+                break;
+            }
+            out.write(readFully(in, size));
+            readLine(in);       // The CRLF after each chunk
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses an HTTP body that uses gzip content encoding.
+     * @param body the compressed body
+     * @return the decompressed body
+     * @throws IOException if the body isn't valid gzip data
+     */
+    private static byte[] gunzip(byte[] body) throws IOException {
+        try (InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(body))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (out.size() + read > MAX_RECORD_SIZE) {
+                    throw new IOException("Decompressed body is too large");
+                }
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Reads a line ending with LF or CRLF. The line ending isn't included.
+     * @param in the stream to read from
+     * @return the line, or {@code null} if the stream has ended
+     * @throws IOException if the stream can't be read or the line is too long
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line is too long");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String result = new String(line.toByteArray(),
+                                   StandardCharsets.ISO_8859_1);
+        if (result.endsWith("\r")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    /**
+     * Reads an exact number of bytes.
+     * @param in the stream to read from
+     * @param length the number of bytes to read
+     * @return the bytes
+     * @throws IOException if the stream ends too early or can't be read
+     */
+    private static byte[] readFully(InputStream in, int length)
+            throws IOException {
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(result, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("WARC data ended in the middle of a " +
+                                       "record");
+            }
+            offset += read;
+        }
+        return result;
+    }
+
+    /**
+     * Skips an exact number of bytes.
+     * @param in the stream to skip bytes in
+     * @param amount the number of bytes to skip
+     * @throws IOException if the stream ends too early or can't be read
+     */
+    private static void skipFully(InputStream in, long amount)
+            throws IOException {
+        while (amount > 0) {
+            long skipped = in.skip(amount);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("WARC data ended in the middle " +
+                                           "of a record");
+                }
+                skipped = 1;
+            }
+            amount -= skipped;
+        }
+    }
+
+    /**
+     * Reads a block of a known length from another stream, and counts how
+     * many bytes have been read through it. The stream ends at the end of the
+     * block. Only single-byte reads are supported, which is all that
+     * {@link WarcReader#readLine} needs.
+     */
+    private static final class BlockInputStream extends InputStream {
+
+        private final InputStream in;
+        private final long length;
+        private long count = 0;
+
+        /**
+         * @param in stream positioned at the start of the block
+         * @param length the length of the block
+         */
+        private BlockInputStream(InputStream in, long length) {
+            this.in = in;
+            this.length = length;
+        }
+
+        @Override public int read() throws IOException {
+            if (count >= length) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+    }
+
+}
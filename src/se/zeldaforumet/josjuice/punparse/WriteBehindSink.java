@@ -0,0 +1,442 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link RecordSink} that lets the threads that parse files continue while
+ * their records are being written. Inserted records are put in a bounded
+ * queue, and writer threads take them from the queue in large batches and
+ * insert them into another {@code RecordSink}. Each thread that inserts
+ * records is given one of the writers the first time it does so, and each
+ * writer inserts the records in its queue in order, so the records of one
+ * thread are written in the order they were inserted. When a queue is full,
+ * inserting waits until the writer has caught up, so parsing is slowed down
+ * instead of filling up the memory.
+ * <p>
+ * Each record is queued together with its {@link InsertCallback}, so errors
+ * that happen when a writer inserts a record are reported to the code that
+ * inserted it, and a file isn't finished until its queued records have been
+ * written. If the {@code RecordSink} throws an unchecked exception, the record
+ * fails and the writer goes on with the next one, so a broken sink can't make
+ * inserting or {@link #finish()} wait forever. Thread safe.
+ * @author JosJuice
+ */
+public final class WriteBehindSink implements RecordSink {
+
+    /** The number of records that can be waiting by default. */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    /** The most records that a writer takes from its queue at once. */
+    private static final int DRAIN_SIZE = 1000;
+
+    /** Put last in each queue to make its writer stop. */
+    private static final Write STOP = new Write(null) {
+        @Override void writeTo(RecordSink sink, InsertCallback callback) {}
+    };
+
+    private final RecordSink sink;
+    private final UserInterface ui;
+    private final Writer[] writers;
+    private final AtomicInteger nextWriter = new AtomicInteger();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private volatile boolean isFinished = false;
+
+    /** The writer that each thread uses. */
+    private final ThreadLocal<Writer> threadWriter =
+            new ThreadLocal<Writer>() {
+                @Override protected Writer initialValue() {
+                    int index = nextWriter.getAndIncrement() &
+                                Integer.MAX_VALUE;
+                    return writers[index % writers.length];
+                }
+            };
+
+    /**
+     * Starts the writer threads.
+     * @param sink the {@code RecordSink} that records are written to. It
+     * should allow as many threads as there are writers to insert at the same
+     * time, like a {@link Database} with one connection per writer.
+     * @param writers the number of writer threads
+     * @param queueSize the number of records that can be waiting before
+     * inserting has to wait, shared equally between the writers
+     * @param ui A {@link UserInterface} for displaying errors that don't
+     * belong to a record, or {@code null}.
+     * @throws IllegalArgumentException if {@code writers} or
+     * {@code queueSize} is less than 1
+     */
+    public WriteBehindSink(RecordSink sink, int writers, int queueSize,
+                           UserInterface ui) {
+        if (writers < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("The number of writers and " +
+                                               "the queue size must be " +
+                                               "positive.");
+        }
+        this.sink = sink;
+        this.ui = ui;
+        this.writers = new Writer[writers];
+        int capacity = Math.max(1, queueSize / writers);
+        for (int i = 0; i < writers; i++) {
+            this.writers[i] = new Writer(i + 1, capacity);
+            this.writers[i].start();
+        }
+    }
+
+    /**
+     * Creates the tables right away, without going through the queue. Should
+     * be done before anything is inserted.
+     * @throws SQLException if something goes wrong on the SQL side
+     */
+    @Override public void createTables() throws SQLException {
+        sink.createTables();
+    }
+
+    @Override public void insert(final PostUser postUser,
+                                 InsertCallback callback) {
+        enqueue(new Write(callback) {
+            @Override void writeTo(RecordSink sink,
+                                   InsertCallback callback) {
+                sink.insert(postUser, callback);
+            }
+        });
+    }
+
+    @Override public void insert(final Post post, final int topicId,
+                                 InsertCallback callback) {
+        enqueue(new Write(callback) {
+            @Override void writeTo(RecordSink sink,
+                                   InsertCallback callback) {
+                sink.insert(post, topicId, callback);
+            }
+        });
+    }
+
+    @Override public void insert(final Topic topic, InsertCallback callback) {
+        enqueue(new Write(callback) {
+            @Override void writeTo(RecordSink sink,
+                                   InsertCallback callback) {
+                sink.insert(topic, callback);
+            }
+        });
+    }
+
+    @Override public void insert(final Forum forum, InsertCallback callback) {
+        enqueue(new Write(callback) {
+            @Override void writeTo(RecordSink sink,
+                                   InsertCallback callback) {
+                sink.insert(forum, callback);
+            }
+        });
+    }
+
+    @Override public void insert(final Category category,
+                                 InsertCallback callback) {
+        enqueue(new Write(callback) {
+            @Override void writeTo(RecordSink sink,
+                                   InsertCallback callback) {
+                sink.insert(category, callback);
+            }
+        });
+    }
+
+    /**
+     * Waits until the writers have written everything that was in their
+     * queues when this method was called, and then flushes the
+     * {@code RecordSink} that the records were written to.
+     */
+    @Override public synchronized void flush() {
+        if (!isFinished) {
+            final CountDownLatch latch = new CountDownLatch(writers.length);
+            for (Writer writer : writers) {
+                put(writer.queue, new Write(null) {
+                    @Override void writeTo(RecordSink sink,
+                                           InsertCallback callback) {
+                        latch.countDown();
+                    }
+                });
+            }
+            boolean isInterrupted = false;
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sink.flush();
+    }
+
+    /**
+     * Puts a record in the queue of the current thread's writer, waiting for
+     * space if the queue is full. If the thread is interrupted while waiting,
+     * the record fails.
+     * @param write the record to put in the queue
+     * @throws IllegalStateException if used after calling {@link #finish()}
+     */
+    private void enqueue(Write write) {
+        if (isFinished) {
+            throw new IllegalStateException("Finished sinks cannot be used.");
+        }
+        BlockingQueue<Write> queue = threadWriter.get().queue;
+        if (queue.offer(write)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.callback.failed("Interrupted while waiting for the write " +
+                                  "queue.");
+        } finally {
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Puts something in a queue, waiting for space without being stopped by
+     * interrupts.
+     * @param queue the queue
+     * @param write what to put in the queue
+     */
+    private static void put(BlockingQueue<Write> queue, Write write) {
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                queue.put(write);
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the writers have written everything in their queues, and
+     * stops them. Nothing can be inserted afterwards. The {@code RecordSink}
+     * that the records were written to isn't closed.
+     */
+    public synchronized void finish() {
+        if (isFinished) {
+            return;
+        }
+        isFinished = true;
+        for (Writer writer : writers) {
+            put(writer.queue, STOP);
+        }
+        boolean isInterrupted = false;
+        for (Writer writer : writers) {
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Finishes writing and closes the {@code RecordSink} that the records
+     * were written to.
+     * @throws SQLException if something goes wrong on the SQL side
+     */
+    @Override public void close() throws SQLException {
+        finish();
+        sink.close();
+    }
+
+    /**
+     * @return how full the queues got, how long it took from when records
+     * were queued until they had been written and how long inserting had to
+     * wait for full queues
+     */
+    @Override public String toString() {
+        int maxDepth = 0;
+        long written = 0;
+        long totalLag = 0;
+        long maxLag = 0;
+        for (Writer writer : writers) {
+            synchronized (writer) {
+                maxDepth = Math.max(maxDepth, writer.maxDepth);
+                written += writer.written;
+                totalLag += writer.totalLag;
+                maxLag = Math.max(maxLag, writer.maxLag);
+            }
+        }
+        long averageLag = written > 0 ? totalLag / written : 0;
+        return "The fullest write queue held " + maxDepth + " of " +
+               writers[0].capacity + " records. Records were written " +
+               averageLag / 1000000 + " ms on average (maximum " +
+               maxLag / 1000000 + " ms) after being queued, and parsing " +
+               "waited " + blockedNanos.get() / 1000000 + " ms for full " +
+               "queues.";
+    }
+
+    /**
+     * A record that is waiting to be written.
+     */
+    private abstract static class Write {
+
+        /** When the record was put in the queue, from System.nanoTime(). */
+        private final long queued = System.nanoTime();
+
+        /** Is told how writing the record went. */
+        final InsertCallback callback;
+
+        /**
+         * @param callback the callback of the record, or {@code null} if this
+         * isn't a record
+         */
+        Write(InsertCallback callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Inserts the record.
+         * @param sink the {@code RecordSink} to insert the record into
+         * @param callback the callback to insert the record with, or
+         * {@code null} if this isn't a record
+         */
+        abstract void writeTo(RecordSink sink, InsertCallback callback);
+
+    }
+
+    /**
+     * A thread that writes the records in its queue until it finds
+     * {@link #STOP}.
+     */
+    private final class Writer extends Thread {
+
+        private final BlockingQueue<Write> queue;
+        private final int capacity;
+
+        // Statistics, guarded by this. Records are counted when their
+        // callbacks are called, which may be after a batch has been sent by
+        // another thread
+        private int maxDepth = 0;
+        private long written = 0;
+        private long totalLag = 0;
+        private long maxLag = 0;
+
+        /**
+         * @param number a number to tell the writer threads apart
+         * @param capacity the number of records the queue can hold
+         */
+        Writer(int number, int capacity) {
+            super("Writer " + number);
+            this.capacity = capacity;
+            queue = new ArrayBlockingQueue<>(capacity);
+            // Records are only left unwritten if finish() isn't called
+            setDaemon(true);
+        }
+
+        @Override public void run() {
+            ArrayList<Write> writes = new ArrayList<>(DRAIN_SIZE);
+            while (true) {
+                try {
+                    writes.add(queue.take());
+                } catch (InterruptedException e) {
+                    // Only STOP can stop a writer, so nothing is lost
+                    continue;
+                }
+                // The record that was taken was in the queue as well
+                int depth = Math.min(queue.size() + 1, capacity);
+                queue.drainTo(writes, DRAIN_SIZE - 1);
+                synchronized (this) {
+                    maxDepth = Math.max(maxDepth, depth);
+                }
+                boolean isStopping = false;
+                for (Write write : writes) {
+                    if (write == STOP) {
+                        isStopping = true;
+                        break;
+                    }
+                    TimedCallback callback = write.callback == null ? null :
+                                             new TimedCallback(write);
+                    try {
+                        write.writeTo(sink, callback);
+                    } catch (RuntimeException e) {
+                        // For instance if the sink has been closed too early.
+                        // Keep going, or the queue would never be emptied
+                        String error = e.getLocalizedMessage() != null ?
+                                       e.getLocalizedMessage() : e.toString();
+                        if (callback != null) {
+                            callback.failed(error);
+                        } else if (ui != null) {
+                            ui.printError("Write error: " + error);
+                        }
+                    }
+                }
+                writes.clear();
+                if (isStopping) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Passes on the callback of a record and measures how long it took
+         * from when the record was queued until it was written. Only the first
+         * call is passed on, since a sink that throws an exception may or may
+         * not have called the callback already.
+         */
+        private final class TimedCallback implements InsertCallback {
+
+            private final Write write;
+            private final AtomicBoolean isDone = new AtomicBoolean();
+
+            private TimedCallback(Write write) {
+                this.write = write;
+            }
+
+            @Override public void inserted() {
+                if (done()) {
+                    write.callback.inserted();
+                }
+            }
+
+            @Override public void failed(String error) {
+                if (done()) {
+                    write.callback.failed(error);
+                }
+            }
+
+            /**
+             * @return {@code false} if the callback already has been called
+             */
+            private boolean done() {
+                if (!isDone.compareAndSet(false, true)) {
+                    return false;
+                }
+                long lag = System.nanoTime() - write.queued;
+                synchronized (Writer.this) {
+                    written++;
+                    totalLag += lag;
+                    maxLag = Math.max(maxLag, lag);
+                }
+                return true;
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,101 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Keeps track of the records of one file that have been given to a
+ * {@link RecordSink} but haven't been written yet, and collects their errors.
+ * The file is finished once it has been parsed and every one of its records
+ * has been written or has failed, which may happen on another thread long
+ * after parsing, for instance when a batch is sent. Thread safe.
+ * @author JosJuice
+ */
+abstract class WriteTracker {
+
+    // Records that haven't been written yet, plus 1 until parsing is done.
+    // Guarded by this, like errors
+    private int pending = 1;
+    private final ArrayList<String> errors = new ArrayList<>();
+
+    /**
+     * Creates a callback for a record that is about to be inserted.
+     * @return the callback to insert the record with
+     */
+    InsertCallback add() {
+        synchronized (this) {
+            pending++;
+        }
+        return new Record();
+    }
+
+    /**
+     * Creates a callback for a user that is about to be inserted. If the user
+     * can't be inserted, it is removed from the {@link UserCache}, so that a
+     * later post by the same user tries again.
+     * @param id the ID of the user
+     * @param userCache the cache the user was added to, or {@code null}
+     * @return the callback to insert the user with
+     */
+    InsertCallback addUser(final int id, final UserCache userCache) {
+        synchronized (this) {
+            pending++;
+        }
+        return new Record() {
+            @Override public void failed(String error) {
+                if (userCache != null) {
+                    userCache.remove(id);
+                }
+                super.failed(error);
+            }
+        };
+    }
+
+    /**
+     * Marks the file as parsed, once all of its records have been inserted.
+     * No records can be added after this.
+     * @param parseErrors errors encountered when parsing the file
+     */
+    void parsed(Collection<String> parseErrors) {
+        synchronized (this) {
+            errors.addAll(parseErrors);
+        }
+        done();
+    }
+
+    /**
+     * Called once, when the file has been parsed and all of its records have
+     * been written or have failed.
+     * @param errors errors encountered when parsing and writing (empty if
+     * there were no errors)
+     */
+    abstract void finished(ArrayList<String> errors);
+
+    private void done() {
+        synchronized (this) {
+            if (--pending > 0) {
+                return;
+            }
+        }
+        finished(errors);
+    }
+
+    /**
+     * The callback of one record.
+     */
+    private class Record implements InsertCallback {
+
+        @Override public void inserted() {
+            done();
+        }
+
+        @Override public void failed(String error) {
+            synchronized (WriteTracker.this) {
+                errors.add("SQL error: " + error);
+            }
+            done();
+        }
+
+    }
+
+}
@@ -0,0 +1,53 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests {@link PageReader}.
+ * @author JosJuice
+ */
+public class PageReaderTest {
+
+    private static final String PAGE = "<html><body>\u00E5</body></html>";
+
+    /**
+     * A UTF-8 byte order mark selects UTF-8 and isn't part of the text.
+     */
+    @Test
+    public void testUtf8ByteOrderMarkSkipped() {
+        byte[] page = PAGE.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bytes = ByteBuffer.allocate(page.length + 3);
+        bytes.put((byte) 0xEF).put((byte) 0xBB).put((byte) 0xBF).put(page);
+        bytes.flip();
+
+        PageReader reader = new PageReader(null);
+        assertEquals(PAGE, reader.decode(bytes));
+        assertEquals(StandardCharsets.UTF_8, reader.getCharset());
+    }
+
+    /**
+     * A byte order mark is skipped even when the charset was set beforehand.
+     */
+    @Test
+    public void testUtf16ByteOrderMarkSkipped() {
+        byte[] page = ("\uFEFF" + PAGE).getBytes(StandardCharsets.UTF_16LE);
+
+        PageReader reader = new PageReader("UTF-16LE");
+        assertEquals(PAGE, reader.decode(ByteBuffer.wrap(page)));
+    }
+
+    /**
+     * A page without a byte order mark is decoded as it is.
+     */
+    @Test
+    public void testNoByteOrderMark() {
+        byte[] page = PAGE.getBytes(StandardCharsets.UTF_8);
+
+        PageReader reader = new PageReader("UTF-8");
+        assertEquals(PAGE, reader.decode(ByteBuffer.wrap(page)));
+    }
+
+}
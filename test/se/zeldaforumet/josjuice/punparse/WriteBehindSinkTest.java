@@ -0,0 +1,164 @@
+package se.zeldaforumet.josjuice.punparse;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests {@link WriteBehindSink}.
+ * @author JosJuice
+ */
+public class WriteBehindSinkTest {
+
+    /**
+     * A record that makes the sink throw fails, and the writer goes on with
+     * the records after it instead of dying with a full queue.
+     */
+    @Test(timeout = 10000)
+    public void testThrowingSinkFailsRecord() {
+        // A queue of one record makes inserting wait for the writer
+        WriteBehindSink writeBehind =
+                new WriteBehindSink(new ThrowingSink(2), 1, 1, null);
+        RecordedCallback[] callbacks = new RecordedCallback[5];
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i] = new RecordedCallback();
+            writeBehind.insert(user(i), callbacks[i]);
+        }
+        writeBehind.finish();
+
+        for (int i = 0; i < callbacks.length; i++) {
+            if (i == 2) {
+                assertEquals(0, callbacks[i].inserted.get());
+                assertEquals(1, callbacks[i].errors.size());
+                assertEquals("Broken sink", callbacks[i].errors.get(0));
+            } else {
+                assertEquals(1, callbacks[i].inserted.get());
+                assertEquals(0, callbacks[i].errors.size());
+            }
+        }
+    }
+
+    /**
+     * An exception without a message is still reported, and flushing doesn't
+     * wait for a writer that has died.
+     */
+    @Test(timeout = 10000)
+    public void testFlushAfterException() {
+        WriteBehindSink writeBehind =
+                new WriteBehindSink(new ThrowingSink(0) {
+                    @Override RuntimeException exception() {
+                        return new NullPointerException();
+                    }
+                }, 2, 10, null);
+        RecordedCallback callback = new RecordedCallback();
+        writeBehind.insert(user(0), callback);
+        writeBehind.flush();
+
+        assertEquals(1, callback.errors.size());
+        assertEquals(new NullPointerException().toString(),
+                     callback.errors.get(0));
+        writeBehind.finish();
+    }
+
+    /**
+     * A sink that calls the callback before throwing doesn't make the record
+     * get reported twice.
+     */
+    @Test(timeout = 10000)
+    public void testCallbackCalledOnce() {
+        WriteBehindSink writeBehind =
+                new WriteBehindSink(new ThrowingSink(0) {
+                    @Override public void insert(PostUser postUser,
+                                                 InsertCallback callback) {
+                        callback.inserted();
+                        super.insert(postUser, callback);
+                    }
+                }, 1, 10, null);
+        RecordedCallback callback = new RecordedCallback();
+        writeBehind.insert(user(0), callback);
+        writeBehind.finish();
+
+        assertEquals(1, callback.inserted.get());
+        assertEquals(0, callback.errors.size());
+    }
+
+    private static PostUser user(int id) {
+        return new PostUser(id, "User " + id, "Member", false, null, false);
+    }
+
+    /**
+     * A sink that writes everything right away, except one user that makes it
+     * throw an exception.
+     */
+    private static class ThrowingSink implements RecordSink {
+
+        private final int brokenUserId;
+
+        /**
+         * @param brokenUserId the ID of the user that can't be inserted
+         */
+        ThrowingSink(int brokenUserId) {
+            this.brokenUserId = brokenUserId;
+        }
+
+        /**
+         * @return the exception to throw for the broken user
+         */
+        RuntimeException exception() {
+            return new RuntimeException("Broken sink");
+        }
+
+        @Override public void createTables() {}
+
+        @Override public void insert(PostUser postUser,
+                                     InsertCallback callback) {
+            if (postUser.getId() == brokenUserId) {
+                throw exception();
+            }
+            callback.inserted();
+        }
+
+        @Override public void insert(Post post, int topicId,
+                                     InsertCallback callback) {
+            callback.inserted();
+        }
+
+        @Override public void insert(Topic topic, InsertCallback callback) {
+            callback.inserted();
+        }
+
+        @Override public void insert(Forum forum, InsertCallback callback) {
+            callback.inserted();
+        }
+
+        @Override public void insert(Category category,
+                                     InsertCallback callback) {
+            callback.inserted();
+        }
+
+        @Override public void flush() {}
+
+        @Override public void close() {}
+
+    }
+
+    /**
+     * Remembers what it was told about a record.
+     */
+    private static class RecordedCallback implements InsertCallback {
+
+        final AtomicInteger inserted = new AtomicInteger();
+        final ArrayList<String> errors = new ArrayList<>();
+
+        @Override public void inserted() {
+            inserted.incrementAndGet();
+        }
+
+        @Override public synchronized void failed(String error) {
+            errors.add(error);
+        }
+
+    }
+
+}